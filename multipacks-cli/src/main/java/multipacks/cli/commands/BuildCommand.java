@@ -15,20 +15,32 @@
  */
 package multipacks.cli.commands;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
+import multipacks.bundling.BuildCache;
+import multipacks.bundling.BuildProfiler;
+import multipacks.bundling.BundleMemo;
 import multipacks.bundling.BundleResult;
 import multipacks.bundling.Bundler;
+import multipacks.bundling.zip.CompressionPolicy;
+import multipacks.bundling.zip.ZipIndex;
 import multipacks.cli.CLIPlatform;
 import multipacks.cli.api.Command;
 import multipacks.cli.api.CommandException;
@@ -36,6 +48,9 @@ import multipacks.cli.api.annotations.Argument;
 import multipacks.cli.api.annotations.Option;
 import multipacks.logging.LoggingStage;
 import multipacks.packs.LocalPack;
+import multipacks.packs.meta.PackLock;
+import multipacks.repository.RepositoriesResolver;
+import multipacks.utils.io.IOUtils;
 import multipacks.versioning.Version;
 
 /**
@@ -48,18 +63,50 @@ public class BuildCommand extends Command {
 	@Argument(value = 0, optional = true, helpName = "path/to/packDir = .")
 	public String pathToPack = ".";
 
-	@Option(value = { "--target", "-T" }, helpDescription = "Game version to target (default to pack source game version)")
+	@Option(value = { "--target", "-T" }, helpDescription = "Game versions to target, separated by comma (default to pack source game version). Each game version will be written to its own file")
 	public String targetGameVersion;
 
-	@Option(value = { "--output", "-O" }, helpDescription = "Output file name (default is '<pack-name>-v<version>.zip')")
+	@Option(value = { "--output", "-O" }, helpDescription = "Output file name (default is '<pack-name>-v<version>.zip'). Target game version is appended to file name if there are multiple targets")
 	public String outputDestination;
 
 	@Option(value = "--override", helpDescription = "Override existing output file (if exists)")
 	public boolean override = false;
 
+	@Option(value = "--memory-budget", helpDescription = "Maximum megabytes of file contents to keep in memory while building (default is unlimited)")
+	public long memoryBudget = -1;
+
+	@Option(value = "--first-hit", helpDescription = "Use dependencies from the first configured repository that has them without waiting for later repositories, instead of the highest version from all repositories")
+	public boolean firstHit = false;
+
+	@Option(value = "--repository-timeout", helpDescription = "Maximum milliseconds to wait for each repository while resolving dependencies (default is no timeout)")
+	public long repositoryTimeout = -1;
+
+	@Option(value = "--compression", helpDescription = "Compression rules as comma separated '<glob>=<level>' (level is 0-9 or 'stored'), plus 'default=<level>', 'adaptive=<min savings %>' and 'storeAlreadyCompressed=false' (default stores already compressed files and deflates everything else)")
+	public String compression;
+
+	@Option(value = "--reproducible", helpDescription = "Write zip files with fixed timestamps, so the same pack always produces the same bytes")
+	public boolean reproducible = false;
+
+	@Option(value = "--incremental", helpDescription = "Copy compressed files that are not changed from existing output files instead of compressing them again (always enabled when rebuilding in watch mode)")
+	public boolean incremental = false;
+
+	@Option(value = "--build-cache", helpDescription = "Directory for caching bundled packs between builds (default is a temporary directory in watch mode, otherwise no cache)")
+	public String buildCacheDir;
+
+	@Option(value = "--profile", helpDescription = "Write build profiling report as JSON to given file")
+	public String profileOutput;
+
+	@Option(value = "--profile-trace", helpDescription = "Write build profiling report in Chrome trace event format to given file")
+	public String profileTraceOutput;
+
 	@Option(value = { "--watch", "-W" }, helpDescription = "Rebuild pack when changes are made (override will also be enabled)")
 	public boolean watch = false;
 
+	// Dependencies from repositories does not change while watching, so they are only bundled once
+	private final BundleMemo memo = new BundleMemo();
+	private BuildCache buildCache;
+	private String lastFingerprint;
+
 	public BuildCommand(MultipacksCommand parent) {
 		this.platform = parent.platform;
 		helpName = "build";
@@ -75,6 +122,33 @@ public class BuildCommand extends Command {
 
 		System.out.println("Building '" + packDir + "' ...");
 		if (watch) System.out.println("Watch mode is enabled!");
+
+		try {
+			if (buildCacheDir != null) buildCache = new BuildCache(new File(buildCacheDir).toPath());
+			else if (watch) {
+				BuildCache temporaryCache = buildCache = new BuildCache(Files.createTempDirectory("multipacks-build-cache"));
+
+				// Watch mode is usually stopped with Ctrl+C, which does not run finally blocks
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					@Override
+					public void run() {
+						deleteCache(temporaryCache);
+					}
+				});
+			}
+		} catch (IOException e) {
+			throw new CommandException("An error occured while creating build cache", e);
+		}
+
+		try {
+			watchAndBuild(packDir);
+		} finally {
+			memo.close();
+			if (buildCacheDir == null && buildCache != null) deleteCache(buildCache);
+		}
+	}
+
+	private void watchAndBuild(Path packDir) {
 		buildOnce(packDir, watch || override);
 
 		if (watch) {
@@ -119,34 +193,193 @@ public class BuildCommand extends Command {
 	}
 
 	private void buildOnce(Path packDir, boolean override) {
-		try (LoggingStage stage = platform.getLogger().newStage("Build", "Initialize", 3)) {
+		long start = System.currentTimeMillis();
+
+		try (LoggingStage stage = platform.getLogger().newStage("Build", "Initialize", 2)) {
 			LocalPack pack = new LocalPack(packDir);
+			PackLock lock;
 
 			try {
 				pack.loadFromStorage();
+				lock = pack.loadLock();
 			} catch (IOException e) {
 				throw new CommandException("An error occured", e);
 			}
 
-			File outputFile = new File(outputDestination != null? outputDestination : (pack.getIndex().name + "-v" + pack.getIndex().packVersion.toStringNoPrefix() + ".zip"));
-			if (outputFile.exists()) {
-				if (!override) throw new CommandException("File is already exists: " + outputFile + ". Override that file with --override=true option.");
-				platform.getLogger().warning("File is already exists: {}. Deleting... (--override=true option or watch mode)", outputFile);
-				outputFile.delete();
+			List<Version> targetGameVersions = new ArrayList<>();
+			if (this.targetGameVersion != null) for (String target : this.targetGameVersion.split(",")) {
+				if (!target.isBlank()) targetGameVersions.add(new Version(target.trim()));
 			}
+			if (targetGameVersions.isEmpty()) targetGameVersions.add(pack.getIndex().sourceGameVersion);
+
+			List<File> outputFiles = new ArrayList<>();
+			for (Version target : targetGameVersions) {
+				File outputFile = getOutputFile(pack, targetGameVersions.size() > 1? target : null);
+				if (outputFile.exists() && !override) throw new CommandException("File is already exists: " + outputFile + ". Override that file with --override=true option.");
+				outputFiles.add(outputFile);
+			}
+
+			stage.newStage("Build & Zip");
+			Bundler bundler = new Bundler().fromPlatform(platform).setMemo(memo).setLock(lock).setBuildCache(buildCache);
+			if (memoryBudget >= 0) bundler.setMemoryBudget(memoryBudget * 1024 * 1024);
+			if (firstHit) bundler.setResolutionMode(RepositoriesResolver.Mode.FIRST_HIT);
+			bundler.setRepositoryTimeout(repositoryTimeout).setReproducible(reproducible);
 
-			stage.newStage("VFS Build");
-			Bundler bundler = new Bundler().fromPlatform(platform);
-			Version targetGameVersion = this.targetGameVersion != null? new Version(this.targetGameVersion) : pack.getIndex().sourceGameVersion;
-			platform.getLogger().info("Building " + pack.getIndex().name + " version " + pack.getIndex().packVersion + " (Target game version " + targetGameVersion + ")...");
-			BundleResult result = bundler.bundle(pack, targetGameVersion);
+			// Next builds can only reuse entries from outputs that have content hashes
+			bundler.setIndexed(incremental || watch);
 
-			stage.newStage("Writing Zip file");
-			try (FileOutputStream stream = new FileOutputStream(outputFile)) {
-				result.writeZipData(stream);
+			try {
+				if (compression != null) bundler.setCompressionPolicy(CompressionPolicy.parse(compression));
+			} catch (IllegalArgumentException e) {
+				throw new CommandException(e.getMessage());
+			}
+
+			// Nothing was changed since last build (Eg: files were saved without changes)
+			if (lastFingerprint != null && outputFiles.stream().allMatch(File::exists)) {
+				String fingerprint = String.join(",", join(bundler.computeFingerprints(pack, targetGameVersions)));
+
+				if (fingerprint.equals(lastFingerprint)) {
+					platform.getLogger().info("No changes since last build, skipping...");
+					return;
+				}
+			}
+
+			BuildProfiler profiler = profileOutput != null || profileTraceOutput != null? new BuildProfiler() : null;
+			if (profiler != null) bundler.setListener(profiler).setProfiling(true);
+			platform.getLogger().info("Building " + pack.getIndex().name + " version " + pack.getIndex().packVersion + " (Target game version " + targetGameVersions.stream().map(Version::toString).collect(Collectors.joining(", ")) + ")...");
+
+			// Zip files are written while bundling, so they are written to temporary files first to keep the outputs
+			// intact if the build fails
+			List<File> tempFiles = outputFiles.stream().map(f -> new File(f.getPath() + ".tmp")).toList();
+			List<FileOutputStream> streams = new ArrayList<>();
+			List<BundleResult> results;
+
+			// Outputs from previous build in watch mode are always written with the same options
+			List<ZipIndex> previous = incremental || lastFingerprint != null? openPrevious(outputFiles) : List.of();
+
+			try {
+				try {
+					for (File tempFile : tempFiles) streams.add(new FileOutputStream(tempFile));
+					results = join(bundler.bundleToZip(pack, targetGameVersions, new ArrayList<>(streams), previous));
+				} catch (IOException e) {
+					throw new RuntimeException("Failed to write to temporary files", e);
+				} finally {
+					closeAll(previous);
+				}
+
+				if (!closeAll(streams)) throw new RuntimeException("Failed to write to temporary files");
+				if (profiler != null) writeProfile(profiler);
+
+				try {
+					pack.saveLock(lock);
+				} catch (IOException e) {
+					platform.getLogger().warning("Failed to save {}: {}", LocalPack.FILE_LOCK, e.getMessage());
+				}
+
+				if (buildCache != null) pruneCache(start);
+
+				for (int i = 0; i < outputFiles.size(); i++) {
+					File outputFile = outputFiles.get(i);
+					if (outputFile.exists()) platform.getLogger().warning("File is already exists: {}. Overriding... (--override=true option or watch mode)", outputFile);
+
+					try {
+						Files.move(tempFiles.get(i).toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					} catch (IOException e) {
+						throw new RuntimeException("Failed to write to " + outputFile, e);
+					}
+				}
+			} catch (CancellationException e) {
+				throw new CommandException("Build was cancelled", e);
+			} finally {
+				// Temporary files are already moved if the build was successful
+				closeAll(streams);
+				tempFiles.forEach(File::delete);
+			}
+
+			lastFingerprint = results.stream().anyMatch(r -> r.getFingerprint() == null)? null : results.stream().map(BundleResult::getFingerprint).collect(Collectors.joining(","));
+		}
+	}
+
+	private static <T> T join(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException re) throw re;
+			throw e;
+		}
+	}
+
+	private void pruneCache(long start) {
+		// Temporary cache only keeps stages from the latest build
+		long unusedSince = buildCacheDir != null? start - BuildCache.DEFAULT_RETENTION : start - BuildCache.MODIFIED_WINDOW;
+
+		try {
+			buildCache.prune(unusedSince);
+		} catch (IOException e) {
+			platform.getLogger().warning("Failed to prune build cache {}: {}", buildCache.root, e.getMessage());
+		}
+	}
+
+	private synchronized void deleteCache(BuildCache cache) {
+		try {
+			cache.clear();
+		} catch (IOException e) {
+			platform.getLogger().warning("Failed to delete temporary build cache {}: {}", cache.root, e.getMessage());
+		}
+	}
+
+	private File getOutputFile(LocalPack pack, Version target) {
+		String suffix = target != null? ("-" + target.toStringNoPrefix()) : "";
+		if (outputDestination == null) return new File(pack.getIndex().name + "-v" + pack.getIndex().packVersion.toStringNoPrefix() + suffix + ".zip");
+
+		int dot = outputDestination.lastIndexOf('.');
+		if (dot <= outputDestination.lastIndexOf(File.separatorChar)) return new File(outputDestination + suffix);
+		return new File(outputDestination.substring(0, dot) + suffix + outputDestination.substring(dot));
+	}
+
+	private List<ZipIndex> openPrevious(List<File> outputFiles) {
+		List<ZipIndex> previous = new ArrayList<>();
+
+		for (File outputFile : outputFiles) {
+			if (!outputFile.exists()) continue;
+
+			try {
+				previous.add(ZipIndex.open(outputFile.toPath()));
+			} catch (IOException e) {
+				platform.getLogger().warning("Failed to read {}, all files will be compressed: {}", outputFile, e.getMessage());
+			}
+		}
+
+		return previous;
+	}
+
+	private static boolean closeAll(List<? extends Closeable> streams) {
+		boolean success = true;
+
+		for (Closeable stream : streams) {
+			try {
+				stream.close();
 			} catch (IOException e) {
-				throw new RuntimeException("Failed to write to " + outputFile, e);
+				success = false;
+			}
+		}
+
+		return success;
+	}
+
+	private void writeProfile(BuildProfiler profiler) {
+		try {
+			if (profileOutput != null) {
+				IOUtils.jsonToFile(profiler.toJson(), new File(profileOutput));
+				platform.getLogger().info("Profiling report written to {}", profileOutput);
+			}
+
+			if (profileTraceOutput != null) {
+				IOUtils.jsonToFile(profiler.toChromeTrace(), new File(profileTraceOutput));
+				platform.getLogger().info("Profiling trace written to {}", profileTraceOutput);
 			}
+		} catch (IOException e) {
+			platform.getLogger().warning("Failed to write profiling report: {}", e.getMessage());
 		}
 	}
 }
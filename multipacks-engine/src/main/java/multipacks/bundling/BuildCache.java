@@ -0,0 +1,677 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.bundling;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import multipacks.modifier.Modifier;
+import multipacks.modifier.ModifierInfo;
+import multipacks.modifier.ModifiersAccess;
+import multipacks.packs.Pack;
+import multipacks.utils.Messages;
+import multipacks.utils.ResourcePath;
+import multipacks.utils.io.IOUtils;
+import multipacks.vfs.BlobStore;
+import multipacks.vfs.Path;
+import multipacks.vfs.Vfs;
+import multipacks.vfs.VfsChange;
+import multipacks.vfs.VfsJournal;
+
+/**
+ * Cached files must not be removed while bundle results loaded from this cache are still in use.
+ * @author nahkd
+ *
+ */
+public class BuildCache {
+	public static final String DIR_OBJECTS = "objects";
+	public static final String DIR_STAGES = "stages";
+	public static final String DIR_ARTIFACTS = "artifacts";
+	public static final String ARTIFACT_MODIFIERS = "modifiers.bin";
+	public static final String FILE_HASHES = "hashes.json";
+	public static final String FIELD_FILES = "files";
+	public static final String FIELD_READS = "reads";
+	public static final String FIELD_REMOVED = "removed";
+	public static final String FIELD_SIZE = "size";
+	public static final String FIELD_MODIFIED = "modified";
+	public static final String FIELD_HASH = "hash";
+
+	public static final long MODIFIED_WINDOW = 2000L;
+	public static final long DEFAULT_RETENTION = 7L * 24 * 60 * 60 * 1000;
+
+	public static final int FORMAT_VERSION = 3;
+
+	public final java.nio.file.Path root;
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+	private Map<String, FileHash> fileHashes;
+	private boolean fileHashesChanged = false;
+
+	public BuildCache(java.nio.file.Path root) {
+		this.root = root;
+	}
+
+	public String fingerprintPack(Pack pack, String... extraFiles) {
+		Fingerprint fingerprint = new Fingerprint();
+		fingerprint.put(FORMAT_VERSION);
+		fingerprint.put(pack.getIndex().toJson().toString());
+
+		JsonArray modifiersConfig = pack.getModifiersConfig();
+		fingerprint.put(modifiersConfig != null? modifiersConfig.toString() : "");
+
+		Vfs packVfs = pack.createVfs();
+		Map<String, String> files = new TreeMap<>();
+
+		// Included configs are usually inside content directories, but they can be anywhere inside the pack
+		if (modifiersConfig != null) collectIncludes(packVfs, Path.ROOT, modifiersConfig, files);
+
+		for (Vfs child : packVfs.listFiles()) {
+			if (child.isDir()) child.files().forEach(file -> files.put(file.getPathFromRoot().toString(), hashFile(file)));
+		}
+
+		for (String extraFile : extraFiles) {
+			Vfs file = packVfs.get(extraFile);
+			if (file != null && !file.isDir()) files.put(extraFile, hashFile(file));
+		}
+
+		files.forEach((path, hash) -> fingerprint.put(path).put(hash));
+		return fingerprint.finish();
+	}
+
+	private void collectIncludes(Vfs packVfs, Path cwd, JsonElement json, Map<String, String> files) {
+		if (json.isJsonArray()) {
+			for (JsonElement e : json.getAsJsonArray()) collectIncludes(packVfs, cwd, e, files);
+		} else if (json.isJsonObject()) {
+			JsonObject obj = json.getAsJsonObject();
+			if (obj.has(Modifier.FIELD_CONFIG)) collectIncludes(packVfs, cwd, obj.get(Modifier.FIELD_CONFIG), files);
+			if (!obj.has(Modifier.FIELD_INCLUDE)) return;
+
+			Path include = cwd.join(obj.get(Modifier.FIELD_INCLUDE).getAsString());
+			Vfs file = packVfs.get(include);
+			String key = Modifier.FIELD_INCLUDE + ":" + include;
+			if (file == null || file.isDir() || files.containsKey(key)) return;
+			files.put(key, hashFile(file));
+
+			try {
+				collectIncludes(packVfs, include.join(".."), IOUtils.jsonFromVfs(file), files);
+			} catch (IOException | RuntimeException e) {
+				// Broken configs are reported while applying modifiers
+			}
+		}
+	}
+
+	private String hashFile(Vfs file) {
+		java.nio.file.Path nativePath = file.getNativePath();
+		if (nativePath == null) return BlobStore.hash(file.getContentBuffer());
+
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(nativePath, BasicFileAttributes.class);
+			long modified = attributes.lastModifiedTime().toMillis();
+			String key = nativePath.toAbsolutePath().normalize().toString();
+			Map<String, FileHash> hashes = getFileHashes();
+
+			synchronized (hashes) {
+				FileHash cached = hashes.get(key);
+				if (cached != null && cached.size == attributes.size() && cached.modified == modified) return cached.hash;
+			}
+
+			String hash = BlobStore.hash(file.getContentBuffer());
+			if (modified >= System.currentTimeMillis() - MODIFIED_WINDOW) return hash;
+
+			synchronized (hashes) {
+				hashes.put(key, new FileHash(attributes.size(), modified, hash));
+				fileHashesChanged = true;
+			}
+
+			return hash;
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to hash " + nativePath, e);
+		}
+	}
+
+	private synchronized Map<String, FileHash> getFileHashes() {
+		if (fileHashes != null) return fileHashes;
+		fileHashes = new HashMap<>();
+		java.nio.file.Path file = root.resolve(FILE_HASHES);
+		if (!Files.exists(file)) return fileHashes;
+
+		try {
+			JsonObject json = IOUtils.jsonFromPath(file).getAsJsonObject();
+
+			for (Map.Entry<String, JsonElement> e : json.getAsJsonObject(FIELD_FILES).entrySet()) {
+				JsonObject entry = e.getValue().getAsJsonObject();
+				fileHashes.put(e.getKey(), new FileHash(entry.get(FIELD_SIZE).getAsLong(), entry.get(FIELD_MODIFIED).getAsLong(), entry.get(FIELD_HASH).getAsString()));
+			}
+		} catch (IOException | RuntimeException e) {
+			// Hashes can always be computed again
+			fileHashes.clear();
+		}
+
+		return fileHashes;
+	}
+
+	public void saveFileHashes() {
+		Map<String, FileHash> hashes = getFileHashes();
+		JsonObject files = new JsonObject();
+
+		synchronized (hashes) {
+			if (!fileHashesChanged) return;
+
+			hashes.forEach((path, hash) -> {
+				JsonObject entry = new JsonObject();
+				entry.addProperty(FIELD_SIZE, hash.size);
+				entry.addProperty(FIELD_MODIFIED, hash.modified);
+				entry.addProperty(FIELD_HASH, hash.hash);
+				files.add(path, entry);
+			});
+
+			fileHashesChanged = false;
+		}
+
+		JsonObject json = new JsonObject();
+		json.add(FIELD_FILES, files);
+
+		try {
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			IOUtils.jsonToStream(json, data);
+			writeAtomic(root.resolve(FILE_HASHES), ByteBuffer.wrap(data.toByteArray()));
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to save file hashes to build cache", e);
+		}
+	}
+
+	public Vfs load(String fingerprint, BlobStore blobs) {
+		java.nio.file.Path manifestFile = getStageFile(fingerprint);
+
+		if (!Files.exists(manifestFile)) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		try {
+			JsonObject manifest = IOUtils.jsonFromPath(manifestFile).getAsJsonObject();
+			Vfs content = Vfs.createVirtualRoot(blobs);
+
+			for (Map.Entry<String, JsonElement> e : manifest.getAsJsonObject(FIELD_FILES).entrySet()) {
+				java.nio.file.Path objectFile = getObjectFile(e.getValue().getAsString());
+
+				// Objects might be removed by hand; treat the stage as not cached
+				if (!Files.exists(objectFile)) {
+					misses.incrementAndGet();
+					return null;
+				}
+
+				String[] segments = new Path(e.getKey()).getSegments();
+				Vfs dir = content;
+				for (int i = 0; i < segments.length - 1; i++) dir = dir.mkdir(segments[i]);
+				dir.link(segments[segments.length - 1], objectFile);
+			}
+
+			touch(manifestFile);
+			hits.incrementAndGet();
+			return content;
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to load cached stage " + fingerprint, e);
+		}
+	}
+
+	public void store(String fingerprint, Vfs content) {
+		JsonObject files = new JsonObject();
+
+		try {
+			for (Vfs file : (Iterable<Vfs>) content.files()::iterator) {
+				ByteBuffer buffer = file.getContentBuffer();
+				String hash = BlobStore.hash(buffer);
+				storeObject(hash, buffer);
+				files.addProperty(file.getPathFromRoot().toString(), hash);
+			}
+
+			JsonObject manifest = new JsonObject();
+			manifest.add(FIELD_FILES, files);
+			writeManifest(fingerprint, manifest);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to store stage " + fingerprint + " to build cache", e);
+		}
+	}
+
+	/**
+	 * Store outputs of a single modifier invocation. Only reads that were recorded in the journal are checked when
+	 * applying it again, so the modifier must not keep anything between invocations.
+	 */
+	public void storeInvocation(String fingerprint, Vfs input, VfsJournal journal, Vfs output) {
+		JsonObject reads = new JsonObject();
+		JsonObject files = new JsonObject();
+		JsonArray removed = new JsonArray();
+
+		for (VfsJournal.Entry entry : journal.getEntries()) {
+			if (!entry.operation.isRead()) continue;
+			String key = entry.operation + " " + entry.path;
+			if (!reads.has(key)) reads.addProperty(key, describe(entry.operation, lookup(input, entry.path)));
+		}
+
+		try {
+			for (VfsChange change : Vfs.diff(input, output)) {
+				if (change.type == VfsChange.Type.REMOVED) {
+					removed.add(change.path.toString());
+					continue;
+				}
+
+				ByteBuffer buffer = output.get(change.path).getContentBuffer();
+				String hash = BlobStore.hash(buffer);
+				storeObject(hash, buffer);
+				files.addProperty(change.path.toString(), hash);
+			}
+
+			JsonObject manifest = new JsonObject();
+			manifest.add(FIELD_READS, reads);
+			manifest.add(FIELD_FILES, files);
+			manifest.add(FIELD_REMOVED, removed);
+			writeManifest(fingerprint, manifest);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to store invocation " + fingerprint + " to build cache", e);
+		}
+	}
+
+	/**
+	 * Apply cached outputs of a single modifier invocation if everything it read is still the same.
+	 * @return {@code false} if the invocation is not cached.
+	 */
+	public boolean applyInvocation(String fingerprint, Vfs content) {
+		java.nio.file.Path manifestFile = getStageFile(fingerprint);
+
+		if (!Files.exists(manifestFile)) {
+			misses.incrementAndGet();
+			return false;
+		}
+
+		try {
+			JsonObject manifest = IOUtils.jsonFromPath(manifestFile).getAsJsonObject();
+			JsonObject files = manifest.getAsJsonObject(FIELD_FILES);
+
+			for (Map.Entry<String, JsonElement> e : manifest.getAsJsonObject(FIELD_READS).entrySet()) {
+				int split = e.getKey().indexOf(' ');
+				VfsJournal.Operation operation = VfsJournal.Operation.valueOf(e.getKey().substring(0, split));
+				Path path = new Path(e.getKey().substring(split + 1));
+
+				if (!describe(operation, lookup(content, path)).equals(e.getValue().getAsString())) {
+					misses.incrementAndGet();
+					return false;
+				}
+			}
+
+			for (Map.Entry<String, JsonElement> e : files.entrySet()) {
+				if (!Files.exists(getObjectFile(e.getValue().getAsString()))) {
+					misses.incrementAndGet();
+					return false;
+				}
+			}
+
+			for (JsonElement e : manifest.getAsJsonArray(FIELD_REMOVED)) {
+				Path path = new Path(e.getAsString());
+				Vfs parent = content.get(path.parent());
+				if (parent != null) parent.delete(path.fileName());
+			}
+
+			for (Map.Entry<String, JsonElement> e : files.entrySet()) {
+				Path path = new Path(e.getKey());
+				Vfs dir = content;
+				String[] segments = path.getSegments();
+				for (int i = 0; i < segments.length - 1; i++) dir = dir.mkdir(segments[i]);
+				dir.link(segments[segments.length - 1], getObjectFile(e.getValue().getAsString()));
+			}
+
+			touch(manifestFile);
+			hits.incrementAndGet();
+			return true;
+		} catch (IOException | RuntimeException e) {
+			throw new RuntimeException("Failed to apply cached invocation " + fingerprint, e);
+		}
+	}
+
+	private static Vfs lookup(Vfs root, Path path) {
+		Vfs file = root;
+
+		for (String segment : path.getSegments()) {
+			if (!file.isDir()) return null;
+			file = file.get(segment);
+			if (file == null) return null;
+		}
+
+		return file;
+	}
+
+	private String describe(VfsJournal.Operation operation, Vfs file) {
+		if (file == null) return "";
+		if (!file.isDir()) return operation == VfsJournal.Operation.READ? hashFile(file) : "file";
+		if (operation != VfsJournal.Operation.LIST) return "dir";
+
+		Fingerprint fingerprint = new Fingerprint();
+		for (Vfs child : file.listFiles()) fingerprint.put(child.getName()).put(child.isDir());
+		return fingerprint.finish();
+	}
+
+	private void storeObject(String hash, ByteBuffer content) throws IOException {
+		java.nio.file.Path objectFile = getObjectFile(hash);
+
+		// Touched, so pruning does not remove objects that are about to be referenced again
+		if (!Files.exists(objectFile)) writeAtomic(objectFile, content);
+		else touch(objectFile);
+	}
+
+	private void writeManifest(String fingerprint, JsonObject manifest) throws IOException {
+		java.nio.file.Path manifestFile = getStageFile(fingerprint);
+		Files.createDirectories(manifestFile.getParent());
+		java.nio.file.Path temp = Files.createTempFile(manifestFile.getParent(), fingerprint, ".tmp");
+
+		try (OutputStream stream = Files.newOutputStream(temp)) {
+			IOUtils.jsonToStream(manifest, stream);
+		}
+
+		// Manifest is always written last, so stages are never loaded with missing objects
+		Files.move(temp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void touch(java.nio.file.Path file) {
+		try {
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			// Only used for pruning
+		}
+	}
+
+	public void storeModifiers(String fingerprint, Map<ResourcePath, Modifier<?, ?>> modifiers, ModifiersAccess access) {
+		Map<ResourcePath, Modifier<?, ?>> sorted = new TreeMap<>(Comparator.comparing(ResourcePath::toString));
+		sorted.putAll(modifiers);
+
+		storeArtifact(fingerprint, ARTIFACT_MODIFIERS, stream -> {
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+
+			for (Map.Entry<ResourcePath, Modifier<?, ?>> e : sorted.entrySet()) {
+				// Length-prefixed, so a modifier that reads or writes too much can't corrupt other modifiers
+				ByteArrayOutputStream data = new ByteArrayOutputStream();
+				e.getValue().serializeModifier(new DataOutputStream(data), access);
+				output.writeUTF(e.getKey().toString());
+				output.writeInt(data.size());
+				data.writeTo(output);
+			}
+
+			output.writeUTF(""); // 0-length string: End of List
+			output.flush();
+		});
+	}
+
+	public Map<ResourcePath, Modifier<?, ?>> loadModifiers(String fingerprint, ModifiersAccess access) {
+		java.nio.file.Path file = getArtifact(fingerprint, ARTIFACT_MODIFIERS);
+		Map<ResourcePath, Modifier<?, ?>> modifiers = new HashMap<>();
+
+		if (file != null) try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			String idStr;
+
+			while ((idStr = input.readUTF()).length() > 0) {
+				ResourcePath id = new ResourcePath(idStr);
+				byte[] data = new byte[input.readInt()];
+				input.readFully(data);
+
+				ModifierInfo<?, ?, ?> info = access != null? access.getModifierInfo(id) : null;
+				if (info == null || info.deserializer == null) {
+					file = null;
+					break;
+				}
+
+				modifiers.put(id, info.deserializer.deserialize(new DataInputStream(new ByteArrayInputStream(data))));
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to load modifiers of cached stage " + fingerprint, e);
+		}
+
+		if (file == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		return modifiers;
+	}
+
+	public java.nio.file.Path getArtifact(String fingerprint, String name) {
+		java.nio.file.Path file = getArtifactFile(fingerprint, name);
+		return Files.exists(file)? file : null;
+	}
+
+	public java.nio.file.Path storeArtifact(String fingerprint, String name, ArtifactWriter writer) {
+		java.nio.file.Path file = getArtifactFile(fingerprint, name);
+
+		try {
+			Files.createDirectories(file.getParent());
+			java.nio.file.Path temp = Files.createTempFile(file.getParent(), name, ".tmp");
+
+			try {
+				// Not buffered, so zip writers can transfer native files to the artifact directly
+				try (OutputStream stream = new FileOutputStream(temp.toFile())) {
+					writer.write(stream);
+				}
+
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to store " + name + " of stage " + fingerprint + " to build cache", e);
+		}
+
+		return file;
+	}
+
+	private static void writeAtomic(java.nio.file.Path file, ByteBuffer content) throws IOException {
+		Files.createDirectories(file.getParent());
+		java.nio.file.Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				ByteBuffer remaining = content.duplicate();
+				while (remaining.hasRemaining()) channel.write(remaining);
+			}
+
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	public boolean contains(String fingerprint) {
+		return Files.exists(getStageFile(fingerprint));
+	}
+
+	private java.nio.file.Path getStageFile(String fingerprint) {
+		return root.resolve(DIR_STAGES).resolve(fingerprint + ".json");
+	}
+
+	private java.nio.file.Path getArtifactFile(String fingerprint, String name) {
+		return root.resolve(DIR_ARTIFACTS).resolve(fingerprint).resolve(name);
+	}
+
+	private java.nio.file.Path getObjectFile(String hash) {
+		return root.resolve(DIR_OBJECTS).resolve(hash.substring(0, 2)).resolve(hash);
+	}
+
+	public int getHits() {
+		return hits.get();
+	}
+
+	public int getMisses() {
+		return misses.get();
+	}
+
+	public void clear() throws IOException {
+		deleteRecursive(root);
+	}
+
+	/**
+	 * Remove stages that were not used since given time, and everything that is only referenced by them.
+	 */
+	public void prune(long unusedSince) throws IOException {
+		FileTime cutoff = FileTime.fromMillis(unusedSince);
+		Set<String> stages = new HashSet<>();
+		Set<String> objects = new HashSet<>();
+
+		for (java.nio.file.Path file : list(root.resolve(DIR_STAGES))) {
+			String name = file.getFileName().toString();
+
+			if (Files.getLastModifiedTime(file).compareTo(cutoff) < 0) {
+				Files.deleteIfExists(file);
+				continue;
+			}
+
+			if (!name.endsWith(".json")) continue;
+			stages.add(name.substring(0, name.length() - 5));
+
+			try {
+				JsonObject manifest = IOUtils.jsonFromPath(file).getAsJsonObject();
+				for (Map.Entry<String, JsonElement> e : manifest.getAsJsonObject(FIELD_FILES).entrySet()) objects.add(e.getValue().getAsString());
+			} catch (IOException | RuntimeException e) {
+				// Broken stages are never loaded
+				Files.deleteIfExists(file);
+				stages.remove(name.substring(0, name.length() - 5));
+			}
+		}
+
+		for (java.nio.file.Path dir : list(root.resolve(DIR_ARTIFACTS))) {
+			if (!stages.contains(dir.getFileName().toString())) deleteRecursive(dir);
+		}
+
+		// Recently written objects might belong to a stage that is being stored
+		for (java.nio.file.Path dir : list(root.resolve(DIR_OBJECTS))) {
+			for (java.nio.file.Path file : list(dir)) {
+				if (!objects.contains(file.getFileName().toString()) && Files.getLastModifiedTime(file).compareTo(cutoff) < 0) Files.deleteIfExists(file);
+			}
+		}
+
+		Map<String, FileHash> hashes = getFileHashes();
+
+		synchronized (hashes) {
+			if (hashes.keySet().removeIf(path -> !Files.exists(java.nio.file.Path.of(path)))) fileHashesChanged = true;
+		}
+
+		saveFileHashes();
+	}
+
+	private static List<java.nio.file.Path> list(java.nio.file.Path dir) throws IOException {
+		if (!Files.isDirectory(dir)) return List.of();
+
+		try (Stream<java.nio.file.Path> stream = Files.list(dir)) {
+			return stream.toList();
+		}
+	}
+
+	public void retainArtifacts(String fingerprint) throws IOException {
+		java.nio.file.Path artifacts = root.resolve(DIR_ARTIFACTS);
+		if (!Files.exists(artifacts)) return;
+
+		try (Stream<java.nio.file.Path> stream = Files.list(artifacts)) {
+			for (java.nio.file.Path dir : stream.toList()) {
+				if (!dir.getFileName().toString().equals(fingerprint)) deleteRecursive(dir);
+			}
+		}
+	}
+
+	private static void deleteRecursive(java.nio.file.Path path) throws IOException {
+		if (!Files.exists(path)) return;
+
+		try (Stream<java.nio.file.Path> stream = Files.walk(path)) {
+			for (java.nio.file.Path child : (Iterable<java.nio.file.Path>) stream.sorted(Comparator.reverseOrder())::iterator) Files.delete(child);
+		}
+	}
+
+	@FunctionalInterface
+	public static interface ArtifactWriter {
+		void write(OutputStream stream) throws IOException;
+	}
+
+	private static class FileHash {
+		private final long size;
+		private final long modified;
+		private final String hash;
+
+		private FileHash(long size, long modified, String hash) {
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+		}
+	}
+
+	public static class Fingerprint {
+		private final MessageDigest digest;
+
+		public Fingerprint() {
+			try {
+				digest = MessageDigest.getInstance(BlobStore.HASH_ALGORITHM);
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(Messages.INTERNAL_ERROR, e);
+			}
+		}
+
+		public Fingerprint put(String value) {
+			byte[] bs = value.getBytes(StandardCharsets.UTF_8);
+			put(bs.length);
+			digest.update(bs);
+			return this;
+		}
+
+		public Fingerprint put(int value) {
+			digest.update(ByteBuffer.allocate(4).putInt(0, value));
+			return this;
+		}
+
+		public Fingerprint put(boolean value) {
+			digest.update((byte) (value? 1 : 0));
+			return this;
+		}
+
+		public String finish() {
+			return HexFormat.of().formatHex(digest.digest());
+		}
+	}
+}
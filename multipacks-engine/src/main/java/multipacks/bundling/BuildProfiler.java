@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.bundling;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import multipacks.packs.Pack;
+import multipacks.utils.ResourcePath;
+import multipacks.vfs.VfsStats;
+
+/**
+ * @author nahkd
+ *
+ */
+public class BuildProfiler implements BundleListener {
+	public static final String CATEGORY_STAGE = "stage";
+	public static final String CATEGORY_MODIFIER = "modifier";
+
+	private static final com.sun.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads && threads.isThreadAllocatedMemorySupported()? threads : null;
+
+	private final long origin = System.nanoTime();
+	private final Map<SpanKey, Span> running = new HashMap<>();
+	private final List<Span> spans = new ArrayList<>();
+
+	private static long getAllocatedBytes() {
+		return THREADS != null? THREADS.getCurrentThreadAllocatedBytes() : -1;
+	}
+
+	private static String getPackName(Pack pack) {
+		return pack.getIndex().name + " " + pack.getIndex().packVersion.toStringNoPrefix();
+	}
+
+	private void start(String category, String name, Pack pack) {
+		Span span = new Span(category, name, getPackName(pack));
+		span.startNanos = System.nanoTime() - origin;
+		synchronized (this) { running.put(new SpanKey(category, name, pack), span); }
+	}
+
+	private void finish(String category, String name, Pack pack) {
+		long end = System.nanoTime() - origin;
+		long threadId = Thread.currentThread().getId();
+		long allocated = getAllocatedBytes();
+		VfsStats stats = VfsStats.current();
+
+		synchronized (this) {
+			Span span = running.remove(new SpanKey(category, name, pack));
+			if (span == null) return;
+			span.durationNanos = end - span.startNanos;
+
+			if (span.threadId == threadId) {
+				if (span.startAllocated != -1) span.allocatedBytes = allocated - span.startAllocated;
+			}
+
+			// Counters are per thread, so stages that continue on other threads are reported by Bundler instead
+			if (span.stats != null && span.stats == stats) {
+				if (span.bytesRead == -1) span.bytesRead = stats.getBytesRead() - span.startBytesRead;
+				if (span.bytesWritten == -1) span.bytesWritten = stats.getBytesWritten() - span.startBytesWritten;
+				if (span.files == -1) span.files = stats.getFilesTouched() - span.startFiles;
+			}
+
+			spans.add(span);
+		}
+	}
+
+	@Override
+	public void onStageStarted(BundleStage stage, Pack pack) {
+		start(CATEGORY_STAGE, stage.toString(), pack);
+	}
+
+	@Override
+	public void onStageStatistics(BundleStage stage, Pack pack, long files, long bytesRead, long bytesWritten) {
+		synchronized (this) {
+			Span span = running.get(new SpanKey(CATEGORY_STAGE, stage.toString(), pack));
+			if (span == null) return;
+			span.files = files;
+			span.bytesRead = bytesRead;
+			span.bytesWritten = bytesWritten;
+		}
+	}
+
+	@Override
+	public void onStageFinished(BundleStage stage, Pack pack) {
+		finish(CATEGORY_STAGE, stage.toString(), pack);
+	}
+
+	@Override
+	public void onModifierStarted(Pack pack, ResourcePath modifier) {
+		start(CATEGORY_MODIFIER, modifier.toString(), pack);
+	}
+
+	@Override
+	public void onModifierFinished(Pack pack, ResourcePath modifier) {
+		finish(CATEGORY_MODIFIER, modifier.toString(), pack);
+	}
+
+	public synchronized List<Span> getSpans() {
+		List<Span> sorted = new ArrayList<>(spans);
+		sorted.sort(Comparator.comparingLong(span -> span.startNanos));
+		return sorted;
+	}
+
+	public synchronized void clear() {
+		running.clear();
+		spans.clear();
+	}
+
+	public JsonObject toJson() {
+		List<Span> spans = getSpans();
+		JsonObject json = new JsonObject();
+		JsonArray spansJson = new JsonArray();
+		for (Span span : spans) spansJson.add(span.toJson());
+
+		json.add("spans", spansJson);
+		json.add("stages", summarize(spans, CATEGORY_STAGE, span -> span.name));
+		json.add("modifiers", summarize(spans, CATEGORY_MODIFIER, span -> span.name));
+		json.add("packs", summarize(spans, CATEGORY_STAGE, span -> span.pack));
+		return json;
+	}
+
+	private static JsonObject summarize(List<Span> spans, String category, Function<Span, String> groupBy) {
+		Map<String, long[]> totals = new TreeMap<>();
+
+		for (Span span : spans) {
+			if (!span.category.equals(category)) continue;
+			long[] total = totals.computeIfAbsent(groupBy.apply(span), k -> new long[6]);
+			total[0]++;
+			total[1] += span.durationNanos / 1000;
+			if (span.bytesRead != -1) total[2] += span.bytesRead;
+			if (span.bytesWritten != -1) total[3] += span.bytesWritten;
+			if (span.files != -1) total[4] += span.files;
+			if (span.allocatedBytes != -1) total[5] += span.allocatedBytes;
+		}
+
+		JsonObject json = new JsonObject();
+		totals.forEach((group, total) -> {
+			JsonObject obj = new JsonObject();
+			obj.addProperty("count", total[0]);
+			obj.addProperty("durationMicros", total[1]);
+			obj.addProperty("bytesRead", total[2]);
+			obj.addProperty("bytesWritten", total[3]);
+			obj.addProperty("files", total[4]);
+			obj.addProperty("allocatedBytes", total[5]);
+			json.add(group, obj);
+		});
+
+		return json;
+	}
+
+	public JsonObject toChromeTrace() {
+		List<Span> spans = getSpans();
+		JsonArray events = new JsonArray();
+		Map<Long, String> threads = new TreeMap<>();
+
+		for (Span span : spans) {
+			threads.put(span.threadId, span.threadName);
+
+			JsonObject event = new JsonObject();
+			event.addProperty("name", span.category.equals(CATEGORY_STAGE)? span.name + " " + span.pack : span.name);
+			event.addProperty("cat", span.category);
+			event.addProperty("ph", "X");
+			event.addProperty("ts", span.startNanos / 1000.0);
+			event.addProperty("dur", span.durationNanos / 1000.0);
+			event.addProperty("pid", 1);
+			event.addProperty("tid", span.threadId);
+
+			JsonObject args = span.toJson();
+			args.remove("startMicros");
+			args.remove("durationMicros");
+			event.add("args", args);
+			events.add(event);
+		}
+
+		threads.forEach((id, name) -> {
+			JsonObject event = new JsonObject();
+			event.addProperty("name", "thread_name");
+			event.addProperty("ph", "M");
+			event.addProperty("pid", 1);
+			event.addProperty("tid", id);
+			JsonObject args = new JsonObject();
+			args.addProperty("name", name);
+			event.add("args", args);
+			events.add(event);
+		});
+
+		JsonObject json = new JsonObject();
+		json.add("traceEvents", events);
+		json.addProperty("displayTimeUnit", "ms");
+		return json;
+	}
+
+	private static class SpanKey {
+		final String category;
+		final String name;
+		final Pack pack;
+
+		SpanKey(String category, String name, Pack pack) {
+			this.category = category;
+			this.name = name;
+			this.pack = pack;
+		}
+
+		@Override
+		public int hashCode() {
+			return (category.hashCode() * 31 + name.hashCode()) * 31 + System.identityHashCode(pack);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof SpanKey other)) return false;
+			return category.equals(other.category) && name.equals(other.name) && pack == other.pack;
+		}
+	}
+
+	public static class Span {
+		public final String category;
+		public final String name;
+		public final String pack;
+		public final long threadId;
+		public final String threadName;
+		private final VfsStats stats;
+		private final long startBytesRead;
+		private final long startBytesWritten;
+		private final long startFiles;
+		private final long startAllocated;
+		private long startNanos;
+		private long durationNanos;
+		private long bytesRead = -1;
+		private long bytesWritten = -1;
+		private long files = -1;
+		private long allocatedBytes = -1;
+
+		private Span(String category, String name, String pack) {
+			this.category = category;
+			this.name = name;
+			this.pack = pack;
+			this.threadId = Thread.currentThread().getId();
+			this.threadName = Thread.currentThread().getName();
+
+			this.stats = VfsStats.current();
+			this.startBytesRead = stats != null? stats.getBytesRead() : 0;
+			this.startBytesWritten = stats != null? stats.getBytesWritten() : 0;
+			this.startFiles = stats != null? stats.getFilesTouched() : 0;
+			this.startAllocated = getAllocatedBytes();
+		}
+
+		public long getStartNanos() {
+			return startNanos;
+		}
+
+		public long getDurationNanos() {
+			return durationNanos;
+		}
+
+		public long getBytesRead() {
+			return bytesRead;
+		}
+
+		public long getBytesWritten() {
+			return bytesWritten;
+		}
+
+		public long getFiles() {
+			return files;
+		}
+
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+
+		public JsonObject toJson() {
+			JsonObject json = new JsonObject();
+			json.addProperty("category", category);
+			json.addProperty("name", name);
+			json.addProperty("pack", pack);
+			json.addProperty("thread", threadName);
+			json.addProperty("startMicros", startNanos / 1000);
+			json.addProperty("durationMicros", durationNanos / 1000);
+			json.addProperty("bytesRead", bytesRead);
+			json.addProperty("bytesWritten", bytesWritten);
+			json.addProperty("files", files);
+			json.addProperty("allocatedBytes", allocatedBytes);
+			return json;
+		}
+	}
+}
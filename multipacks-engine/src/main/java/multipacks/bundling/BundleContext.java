@@ -32,11 +32,29 @@ public class BundleContext {
 	public final Pack pack;
 	public final Vfs content;
 	public final Map<ResourcePath, Modifier<?, ?>> modifiers = new HashMap<>();
+	final BundleRun run;
 
-	public BundleContext(Bundler bundler, Pack pack, Vfs content) {
+	BundleContext(Bundler bundler, Pack pack, Vfs content, BundleRun run) {
 		this.bundler = bundler;
 		this.pack = pack;
 		this.content = content;
+		this.run = run;
+	}
+
+	public BundleContext(Bundler bundler, Pack pack, Vfs content) {
+		this(bundler, pack, content, null);
+	}
+
+	public boolean isCancelled() {
+		return run != null && run.isCancelled();
+	}
+
+	public void checkCancelled() {
+		if (run != null) run.checkCancelled();
+	}
+
+	public BundleListener getListener() {
+		return bundler.listener;
 	}
 
 	public Modifier<?, ?> getOrCreateModifier(ResourcePath id) {
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.bundling;
+
+import multipacks.packs.Pack;
+import multipacks.utils.ResourcePath;
+
+/**
+ * @author nahkd
+ *
+ */
+public interface BundleListener {
+	public static final BundleListener NONE = new BundleListener() {};
+
+	default void onStageStarted(BundleStage stage, Pack pack) {
+	}
+
+	default void onStageFinished(BundleStage stage, Pack pack) {
+	}
+
+	default void onStageStatistics(BundleStage stage, Pack pack, long files, long bytesRead, long bytesWritten) {
+	}
+
+	default void onModifierStarted(Pack pack, ResourcePath modifier) {
+	}
+
+	default void onModifierFinished(Pack pack, ResourcePath modifier) {
+	}
+}
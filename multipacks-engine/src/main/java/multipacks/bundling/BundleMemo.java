@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.bundling;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import multipacks.packs.meta.PackIdentifier;
+import multipacks.vfs.BlobStore;
+
+/**
+ * The memo must be cleared when a pack is changed without bumping its version.
+ * @author nahkd
+ *
+ */
+public class BundleMemo implements Closeable {
+	private final Map<PackIdentifier, CompletableFuture<BundleContext>> bundled = new ConcurrentHashMap<>();
+	private BlobStore blobs;
+
+	synchronized BlobStore getBlobStore(long memoryBudget) {
+		if (blobs == null) blobs = new BlobStore(memoryBudget);
+		return blobs;
+	}
+
+	CompletableFuture<BundleContext> getOrBundle(PackIdentifier id, Supplier<CompletableFuture<BundleContext>> bundler) {
+		CompletableFuture<BundleContext> future = new CompletableFuture<>();
+		CompletableFuture<BundleContext> existing = bundled.putIfAbsent(id, future);
+		if (existing != null) return existing;
+
+		try {
+			bundler.get().whenComplete((ctx, e) -> {
+				if (e != null) {
+					bundled.remove(id, future);
+					future.completeExceptionally(e);
+				} else {
+					future.complete(ctx);
+				}
+			});
+		} catch (RuntimeException e) {
+			bundled.remove(id, future);
+			future.completeExceptionally(e);
+		}
+
+		return future;
+	}
+
+	public boolean contains(PackIdentifier id) {
+		return bundled.containsKey(id);
+	}
+
+	public void invalidate(PackIdentifier id) {
+		bundled.remove(id);
+	}
+
+	public int size() {
+		return bundled.size();
+	}
+
+	public void clear() {
+		bundled.clear();
+	}
+
+	@Override
+	public synchronized void close() {
+		bundled.clear();
+		if (blobs != null) blobs.close();
+		blobs = null;
+	}
+}
@@ -17,15 +17,17 @@ package multipacks.bundling;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.attribute.FileTime;
 import java.util.Collections;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
+import multipacks.bundling.zip.CompressionPolicy;
+import multipacks.bundling.zip.ParallelZipWriter;
+import multipacks.bundling.zip.ZipWriter;
 import multipacks.modifier.Modifier;
 import multipacks.utils.ResourcePath;
+import multipacks.versioning.Version;
 import multipacks.vfs.Vfs;
 
 /**
@@ -35,6 +37,8 @@ import multipacks.vfs.Vfs;
 public class BundleResult {
 	public final Vfs contents;
 	protected Map<ResourcePath, Modifier<?, ?>> modifiers;
+	protected String fingerprint;
+	protected Version targetGameVersion;
 
 	public BundleResult(Vfs contents) {
 		this.contents = contents;
@@ -44,23 +48,27 @@ public class BundleResult {
 		return Collections.unmodifiableMap(modifiers);
 	}
 
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	public Version getTargetGameVersion() {
+		return targetGameVersion;
+	}
+
 	public void writeZipData(OutputStream stream) throws IOException {
-		ZipOutputStream zip = new ZipOutputStream(stream, StandardCharsets.UTF_8);
-		FileTime bundleTime = FileTime.fromMillis(System.currentTimeMillis());
-		vfsAddZipEntry(contents, bundleTime, zip);
-		zip.finish();
+		writeZipData(stream, CompressionPolicy.createDefault());
+	}
+
+	public void writeZipData(OutputStream stream, CompressionPolicy policy) throws IOException {
+		writeZipData(stream, ForkJoinPool.commonPool(), Runtime.getRuntime().availableProcessors(), policy);
+	}
+
+	public void writeZipData(OutputStream stream, Executor executor, int parallelism, CompressionPolicy policy) throws IOException {
+		new ParallelZipWriter(executor, parallelism, policy).write(contents, stream);
 	}
 
-	private void vfsAddZipEntry(Vfs file, FileTime bundleTime, ZipOutputStream zip) throws IOException {
-		if (file.isDir()) {
-			for (Vfs child : file.listFiles()) vfsAddZipEntry(child, bundleTime, zip);
-		} else {
-			ZipEntry entry = new ZipEntry(file.getPathFromRoot().toString())
-					.setCreationTime(bundleTime)
-					.setLastModifiedTime(bundleTime);
-			zip.putNextEntry(entry);
-			zip.write(file.getContent());
-			zip.closeEntry();
-		}
+	public void writeReproducibleZipData(OutputStream stream, CompressionPolicy policy) throws IOException {
+		new ParallelZipWriter(ForkJoinPool.commonPool(), Runtime.getRuntime().availableProcessors(), policy).setTime(ZipWriter.REPRODUCIBLE_TIME).write(contents, stream);
 	}
 }
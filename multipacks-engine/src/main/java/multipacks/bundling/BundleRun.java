@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.bundling;
+
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import multipacks.bundling.zip.ZipPipeline;
+import multipacks.packs.Pack;
+import multipacks.utils.Messages;
+import multipacks.vfs.BlobStore;
+
+/**
+ * @author nahkd
+ *
+ */
+class BundleRun {
+	final BlobStore blobs;
+	final BundleMemo memo;
+	final Pack root;
+	final ZipPipeline zip;
+	final Executor executor;
+	final Set<Pack> prefetched = ConcurrentHashMap.newKeySet();
+	private volatile boolean cancelled;
+
+	BundleRun(BlobStore blobs, BundleMemo memo, Pack root, ZipPipeline zip, Executor executor) {
+		this.blobs = blobs;
+		this.memo = memo;
+		this.root = root;
+		this.zip = zip;
+		this.executor = executor;
+	}
+
+	void cancel() {
+		cancelled = true;
+		if (zip != null) zip.cancel();
+	}
+
+	boolean isCancelled() {
+		return cancelled;
+	}
+
+	void checkCancelled() {
+		if (cancelled) throw new CancellationException(Messages.BUNDLE_CANCELLED);
+	}
+}
@@ -16,30 +16,44 @@
 package multipacks.bundling;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Stream;
-import com.google.gson.GsonBuilder;
+
 import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
-import com.google.gson.stream.JsonWriter;
+import com.google.gson.JsonElement;
 
+import multipacks.bundling.zip.CompressionPolicy;
+import multipacks.bundling.zip.ZipIndex;
+import multipacks.bundling.zip.ZipPipeline;
+import multipacks.bundling.zip.ZipWriter;
 import multipacks.modifier.Modifier;
 import multipacks.modifier.ModifiersAccess;
 import multipacks.packs.Pack;
 import multipacks.packs.meta.PackIdentifier;
+import multipacks.packs.meta.PackLock;
 import multipacks.platform.Platform;
 import multipacks.repository.RepositoriesAccess;
+import multipacks.repository.RepositoriesResolver;
 import multipacks.repository.Repository;
 import multipacks.repository.query.PackQuery;
 import multipacks.utils.Messages;
+import multipacks.utils.ResourcePath;
+import multipacks.utils.io.IOUtils;
 import multipacks.versioning.Version;
+import multipacks.vfs.BlobStore;
 import multipacks.vfs.Vfs;
+import multipacks.vfs.VfsJournal;
+import multipacks.vfs.VfsStats;
 
 /**
  * @author nahkd
@@ -49,6 +63,18 @@ public class Bundler {
 	public RepositoriesAccess repositories;
 	public ModifiersAccess modifiers;
 	public boolean includeLicenses = true;
+	public long memoryBudget = BlobStore.UNLIMITED;
+	public Executor executor = ForkJoinPool.commonPool();
+	public BundleMemo memo;
+	public PackLock lock;
+	public RepositoriesResolver.Mode resolutionMode = RepositoriesResolver.Mode.HIGHEST_VERSION;
+	public long repositoryTimeout = -1;
+	public BuildCache buildCache;
+	public BundleListener listener = BundleListener.NONE;
+	public CompressionPolicy compressionPolicy = CompressionPolicy.createDefault();
+	public boolean reproducible = false;
+	public boolean profiling = false;
+	public boolean indexed = false;
 	public String[] licenseFileNames = new String[] {
 			"license", "licence", "license.txt", "licence.txt", "license.md", "licence.md"
 	};
@@ -71,45 +97,252 @@ public class Bundler {
 		return this;
 	}
 
+	public Bundler setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+		return this;
+	}
+
+	public Bundler setExecutor(Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	public Bundler setMemo(BundleMemo memo) {
+		this.memo = memo;
+		return this;
+	}
+
+	public Bundler setLock(PackLock lock) {
+		this.lock = lock;
+		return this;
+	}
+
+	public Bundler setResolutionMode(RepositoriesResolver.Mode resolutionMode) {
+		this.resolutionMode = resolutionMode;
+		return this;
+	}
+
+	public Bundler setRepositoryTimeout(long repositoryTimeout) {
+		this.repositoryTimeout = repositoryTimeout;
+		return this;
+	}
+
+	public Bundler setBuildCache(BuildCache buildCache) {
+		this.buildCache = buildCache;
+		return this;
+	}
+
+	public Bundler setCompressionPolicy(CompressionPolicy compressionPolicy) {
+		this.compressionPolicy = compressionPolicy;
+		return this;
+	}
+
+	public Bundler setReproducible(boolean reproducible) {
+		this.reproducible = reproducible;
+		return this;
+	}
+
+	public Bundler setIndexed(boolean indexed) {
+		this.indexed = indexed;
+		return this;
+	}
+
+	public Bundler setProfiling(boolean profiling) {
+		this.profiling = profiling;
+		return this;
+	}
+
+	public Bundler setListener(BundleListener listener) {
+		this.listener = listener != null? listener : BundleListener.NONE;
+		return this;
+	}
+
 	public Bundler fromPlatform(Platform platform) {
 		return this
 				.setRepositoriesAccess(platform)
 				.setModifiersAccess(platform);
 	}
 
-	private BundleContext bundleWithoutFinish(Pack pack, Vfs licensesStore, Vfs packFinalOutput) {
-		// TODO: Return CompletableFuture instead
-		Vfs content = Vfs.createVirtualRoot();
-		BundleContext ctx = new BundleContext(this, pack, content);
-
-		if (pack.getIndex().dependencies.size() > 0) {
-			if (repositories == null) throw new NullPointerException("Repositories accessor is missing for this Bundler");
-
-			for (PackQuery depQuery : pack.getIndex().dependencies) {
-				for (Repository repo : repositories.getRepositories()) {
-					try {
-						// TODO: improve dependencies resolution algorithm
-						// caching is needed.
-						Collection<PackIdentifier> ids = repo.search(depQuery).get();
-						if (ids.size() == 0) throw new RuntimeException(Messages.cantResolveDependency(depQuery)); // TODO
-
-						PackIdentifier latest = null;
-						for (PackIdentifier id : ids) {
-							if (latest == null || latest.packVersion.compareTo(id.packVersion) < 0) {
-								latest = id;
-							}
-						}
-
-						Pack dep = repo.obtain(latest).get();
-						Vfs.copyRecursive(bundleWithoutFinish(dep, licensesStore, null).content, content);
-					} catch (ExecutionException | InterruptedException e) {
-						throw new RuntimeException(e);
-					}
-				}
+	public CompletableFuture<DependencyGraph> resolveDependencies(Pack pack) {
+		return resolveDependencies(pack, executor);
+	}
+
+	private CompletableFuture<DependencyGraph> resolveDependencies(Pack pack, Executor executor) {
+		DependencyGraph graph = new DependencyGraph(pack);
+
+		try {
+			return resolveNode(graph, graph.getRoot(), executor).thenApply(v -> {
+				graph.sort();
+				if (lock != null) lock.retain(graph.getNodes().stream().map(node -> node.id).toList());
+				return graph;
+			});
+		} catch (RuntimeException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	private CompletableFuture<Void> resolveNode(DependencyGraph graph, DependencyGraph.Node node, Executor executor) {
+		List<CompletableFuture<DependencyGraph.Node>> dependencies = new ArrayList<>();
+		if (lock != null) lock.validate(node.id, node.pack.getIndex());
+
+		for (PackQuery depQuery : node.pack.getIndex().dependencies) {
+			dependencies.add(resolveQuery(node.id, depQuery, executor).thenCompose(dep -> {
+				DependencyGraph.Node depNode = graph.add(dep);
+
+				// Only the one who added the node resolves it. Not waiting for existing nodes to be resolved, so
+				// dependency cycles can be detected instead of waiting forever
+				if (depNode == null) return CompletableFuture.completedFuture(graph.getNode(DependencyGraph.getIdentifier(dep)));
+				return resolveNode(graph, depNode, executor).thenApply(v -> depNode);
+			}));
+		}
+
+		return sequence(dependencies).thenAccept(nodes -> {
+			node.dependencies = nodes.stream().distinct().toList();
+		});
+	}
+
+	private CompletableFuture<Pack> resolveQuery(PackIdentifier dependent, PackQuery query, Executor executor) {
+		if (repositories == null) throw new NullPointerException("Repositories accessor is missing for this Bundler");
+		PackLock.Entry locked = lock != null? lock.get(dependent, query.toString()) : null;
+
+		if (locked != null) {
+			for (Repository repo : repositories.getRepositories()) {
+				if (!repo.getId().equals(locked.repository)) continue;
+
+				// Locked pack might be removed from repository; search again in that case
+				return CompletableFuture.completedFuture(locked.resolved)
+						.thenComposeAsync(repo::obtain, executor)
+						.thenCompose(dep -> dep != null? CompletableFuture.completedFuture(dep) : searchQuery(dependent, query, executor));
 			}
 		}
 
-		Vfs thisPack = pack.createVfs();
+		return searchQuery(dependent, query, executor);
+	}
+
+	private CompletableFuture<Pack> searchQuery(PackIdentifier dependent, PackQuery query, Executor executor) {
+		RepositoriesResolver resolver = new RepositoriesResolver(resolutionMode, repositoryTimeout, executor);
+
+		return resolver.resolve(repositories.getRepositories(), query).thenCompose(result -> {
+			if (lock != null) lock.put(dependent, query.toString(), result.id, result.repository.getId());
+			return result.repository.obtain(result.id).thenApply(dep -> {
+				if (dep == null) throw new RuntimeException(Messages.cantResolveDependency(query));
+				return dep;
+			});
+		});
+	}
+
+	/**
+	 * Compute fingerprints of bundles without bundling them. Bundles with the same fingerprints have the same contents.
+	 */
+	public CompletableFuture<List<String>> computeFingerprints(Pack pack, List<Version> targetGameVersions) {
+		if (buildCache == null) throw new NullPointerException("Build cache is missing for this Bundler");
+
+		return resolveDependencies(pack).thenCompose(graph -> computeFingerprints(graph, executor).thenApply(v -> {
+			return targetGameVersions.stream().map(target -> computeResultFingerprint(graph, target)).toList();
+		}));
+	}
+
+	private CompletableFuture<Void> computeFingerprints(DependencyGraph graph, Executor executor) {
+		String[] extraFiles = Stream.concat(Stream.of("pack.png"), Stream.of(licenseFileNames)).toArray(String[]::new);
+		List<String> registeredModifiers = getRegisteredModifierNames();
+		Map<DependencyGraph.Node, CompletableFuture<DependencyGraph.Node>> fingerprinted = new HashMap<>();
+
+		// Nodes are sorted, so dependencies are always added before their dependents
+		for (DependencyGraph.Node node : graph.getNodes()) {
+			CompletableFuture<String> packFingerprint = CompletableFuture.supplyAsync(() -> buildCache.fingerprintPack(node.pack, extraFiles), executor);
+			List<CompletableFuture<DependencyGraph.Node>> dependencies = node.dependencies.stream().map(fingerprinted::get).toList();
+
+			fingerprinted.put(node, sequence(dependencies).thenCombine(packFingerprint, (deps, packFingerprintStr) -> {
+				BuildCache.Fingerprint fingerprint = new BuildCache.Fingerprint()
+						.put(node.id.name)
+						.put(node.id.packVersion.toString())
+						.put(packFingerprintStr);
+				for (String modifier : registeredModifiers) fingerprint.put(modifier);
+				for (DependencyGraph.Node dep : deps) fingerprint.put(dep.fingerprint);
+				node.fingerprint = fingerprint.finish();
+				return node;
+			}));
+		}
+
+		return sequence(new ArrayList<>(fingerprinted.values())).thenRunAsync(buildCache::saveFileHashes, executor);
+	}
+
+	/**
+	 * Collect results without blocking, so tasks never wait for each other in bounded executors.
+	 */
+	private static <T> CompletableFuture<List<T>> sequence(List<CompletableFuture<T>> futures) {
+		CompletableFuture<List<T>> result = CompletableFuture.completedFuture(new ArrayList<>());
+		for (CompletableFuture<T> future : futures) result = result.thenCombine(future, (list, value) -> {
+			list.add(value);
+			return list;
+		});
+		return result;
+	}
+
+	private List<String> getRegisteredModifierNames() {
+		// Modifiers from different platforms may produce different outputs
+		return modifiers != null? modifiers.getRegisteredModifiers().stream().map(ResourcePath::toString).sorted().toList() : List.of();
+	}
+
+	private String computeResultFingerprint(DependencyGraph graph, Version targetGameVersion) {
+		BuildCache.Fingerprint fingerprint = new BuildCache.Fingerprint()
+				.put(graph.getRoot().fingerprint)
+				.put(targetGameVersion.toString())
+				.put(includeLicenses);
+		for (String licenseFileName : licenseFileNames) fingerprint.put(licenseFileName);
+		return fingerprint.finish();
+	}
+
+	private CompletableFuture<BundleContext> bundleDependency(DependencyGraph.Node node, BundleRun run) {
+		if (buildCache == null) return bundleWithoutFinish(node, run);
+
+		return CompletableFuture.supplyAsync(() -> buildCache.load(node.fingerprint, run.blobs), run.executor).thenCompose(cached -> {
+			if (cached != null) return CompletableFuture.completedFuture(new BundleContext(this, node.pack, cached, run));
+
+			return bundleWithoutFinish(node, run).thenApplyAsync(ctx -> {
+				buildCache.store(node.fingerprint, ctx.content);
+				return ctx;
+			}, run.executor);
+		});
+	}
+
+	private void prefetch(BundleRun run, Pack pack, Vfs content) {
+		if (run != null && run.zip != null && run.prefetched.add(pack)) run.zip.prefetch(content.snapshot());
+	}
+
+	private CompletableFuture<BundleContext> getOrBundleDependency(DependencyGraph.Node node, BundleRun run) {
+		// Dependencies are not modified after bundling, so their files can be compressed before the root pack is bundled
+		return run.memo.getOrBundle(node.id, () -> bundleDependency(node, run)).thenApply(ctx -> {
+			prefetch(run, ctx.pack, ctx.content);
+			return ctx;
+		}).exceptionallyCompose(e -> {
+			Throwable cause = e instanceof CompletionException? e.getCause() : e;
+			if (!(cause instanceof CancellationException) || run.isCancelled()) return CompletableFuture.failedFuture(e);
+			return getOrBundleDependency(node, run);
+		});
+	}
+
+	private CompletableFuture<BundleContext> bundleWithoutFinish(DependencyGraph.Node node, BundleRun run) {
+		List<CompletableFuture<BundleContext>> dependencies = new ArrayList<>();
+		for (DependencyGraph.Node dep : node.dependencies) dependencies.add(getOrBundleDependency(dep, run));
+
+		return sequence(dependencies).thenApplyAsync(contexts -> {
+			Vfs content = Vfs.createVirtualRoot(run.blobs);
+			BundleContext ctx = new BundleContext(this, node.pack, content, run);
+
+			// Dependencies are merged in declaration order, so later dependencies always override earlier ones
+			startStage(BundleStage.MERGE, node.pack, run);
+			for (BundleContext dependency : contexts) Vfs.copyRecursive(dependency.content, content);
+			listener.onStageFinished(BundleStage.MERGE, node.pack);
+
+			return bundlePack(ctx);
+		}, run.executor);
+	}
+
+	private BundleContext bundlePack(BundleContext ctx) {
+		Vfs content = ctx.content;
+		startStage(BundleStage.COPY, ctx.pack, ctx.run);
+		Vfs thisPack = ctx.pack.createVfs();
 		List<Vfs> contentTypeDirs = Stream.of(thisPack.listFiles()).filter(v -> v.isDir()).toList();
 
 		for (Vfs contentTypeDir : contentTypeDirs) {
@@ -118,65 +351,281 @@ public class Bundler {
 			Vfs.copyRecursive(contentTypeDir, contentTypeDirOut);
 		}
 
+		listener.onStageFinished(BundleStage.COPY, ctx.pack);
+
+		// Files of the root pack are compressed while modifiers are being applied; changed files will be compressed again
+		if (ctx.run != null && ctx.pack == ctx.run.root) prefetch(ctx.run, ctx.pack, content);
+
 		// TODO: Modifiers
-		JsonArray modifiersConfig = pack.getModifiersConfig();
+		JsonArray modifiersConfig = ctx.pack.getModifiersConfig();
 		if (modifiersConfig != null) {
 			if (modifiers == null) throw new NullPointerException("Modifiers accessor is missing for this Bundler");
-			Modifier.applyModifiers(ctx, modifiersConfig);
+			startStage(BundleStage.MODIFIERS, ctx.pack, ctx.run);
+			if (buildCache != null) applyCachedModifiers(ctx, modifiersConfig);
+			else Modifier.applyModifiers(ctx, modifiersConfig);
+			listener.onStageFinished(BundleStage.MODIFIERS, ctx.pack);
 		}
 
-		// Licenses & pack.png
-		if (includeLicenses && licensesStore != null) {
-			for (String licenseFileName : licenseFileNames) {
-				Vfs f = thisPack.get(licenseFileName);
-				if (f != null) {
-					Vfs to = licensesStore.touch("license-" + pack.getIndex().name);
-					try (OutputStream streamOut = to.getOutputStream(); InputStream streamIn = f.getInputStream()) {
-						streamIn.transferTo(streamOut);
-					} catch (IOException e) {
-						throw new RuntimeException(e);
-					}
-				}
+		return ctx;
+	}
+
+	private void applyCachedModifiers(BundleContext ctx, JsonArray modifiersConfig) {
+		List<String> registeredModifiers = getRegisteredModifierNames();
+
+		for (int i = 0; i < modifiersConfig.size(); i++) {
+			JsonElement entry = modifiersConfig.get(i);
+			JsonArray invocation = new JsonArray();
+			invocation.add(entry);
+
+			// Malformed entries are reported by applyModifiers()
+			JsonElement id = entry.isJsonObject()? entry.getAsJsonObject().get(Modifier.FIELD_ID) : null;
+			ResourcePath modifierId = id != null? new ResourcePath(id.getAsString()) : null;
+			Modifier<?, ?> modifier = modifierId != null && modifiers.getModifierInfo(modifierId) != null? ctx.getOrCreateModifier(modifierId) : null;
+
+			// Other modifiers keeps their states between invocations, which are not stored in build cache
+			if (modifier == null || !modifier.isStateless()) {
+				Modifier.applyModifiers(ctx, invocation);
+				continue;
 			}
-		}
 
-		if (packFinalOutput != null) {
-			Vfs packPng = thisPack.get("pack.png");
-			if (packPng != null) {
-				Vfs packPngTo = packFinalOutput.touch("pack.png");
-				try (OutputStream streamOut = packPngTo.getOutputStream(); InputStream streamIn = packPng.getInputStream()) {
-					streamIn.transferTo(streamOut);
-				} catch (IOException e) {
-					throw new RuntimeException(e);
-				}
+			BuildCache.Fingerprint fingerprint = new BuildCache.Fingerprint()
+					.put(BuildCache.FORMAT_VERSION)
+					.put(ctx.pack.getIndex().name)
+					.put(i)
+					.put(entry.toString());
+			for (String registered : registeredModifiers) fingerprint.put(registered);
+			String invocationFingerprint = fingerprint.finish();
+
+			ctx.checkCancelled();
+			if (buildCache.applyInvocation(invocationFingerprint, ctx.content)) continue;
+
+			Vfs input = ctx.content.snapshot();
+			VfsJournal journal = new VfsJournal(true);
+			ctx.content.setJournal(journal);
+
+			try {
+				Modifier.applyModifiers(ctx, invocation);
+			} finally {
+				ctx.content.setJournal(null);
 			}
+
+			buildCache.storeInvocation(invocationFingerprint, input, journal, ctx.content);
 		}
+	}
 
-		return ctx;
+	private void startStage(BundleStage stage, Pack pack, BundleRun run) {
+		run.checkCancelled();
+		listener.onStageStarted(stage, pack);
 	}
 
 	public BundleResult bundle(Pack pack, Version targetGameVersion) {
-		Vfs licenses = Vfs.createVirtualRoot();
-		Vfs finalOutput = Vfs.createVirtualRoot();
-		BundleContext ctx = bundleWithoutFinish(pack, licenses, finalOutput);
+		return join(bundleAsync(pack, targetGameVersion));
+	}
 
-		Vfs.copyRecursive(licenses, ctx.content);
-		Vfs.copyRecursive(finalOutput, ctx.content);
+	public List<BundleResult> bundle(Pack pack, List<Version> targetGameVersions) {
+		return join(bundleAsync(pack, targetGameVersions));
+	}
+
+	private static <T> T join(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException re) throw re;
+			throw e;
+		}
+	}
 
-		BundleResult result = new BundleResult(ctx.content);
-		result.modifiers = ctx.modifiers;
-		for (Modifier<?, ?> modifier : ctx.modifiers.values()) modifier.finalizeModifier(ctx.content, modifiers);
+	public CompletableFuture<BundleResult> bundleAsync(Pack pack, Version targetGameVersion) {
+		return first(bundleAsync(pack, List.of(targetGameVersion)));
+	}
+
+	public CompletableFuture<List<BundleResult>> bundleAsync(Pack pack, List<Version> targetGameVersions) {
+		if (targetGameVersions.isEmpty()) throw new IllegalArgumentException("No target game versions");
+		return bundleAsync(pack, targetGameVersions, null, null, profiling? new VfsStats() : null);
+	}
+
+	public CompletableFuture<BundleResult> bundleToZip(Pack pack, Version targetGameVersion, OutputStream output) {
+		return first(bundleToZip(pack, List.of(targetGameVersion), List.of(output)));
+	}
 
-		Vfs packMcmeta = ctx.content.touch("pack.mcmeta");
-		try (OutputStream stream = packMcmeta.getOutputStream()) {
-			JsonObject json = pack.getIndex().buildPackMcmeta(targetGameVersion);
-			JsonWriter writer = new JsonWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
-			new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create().toJson(json, writer);
-			writer.flush();
+	public CompletableFuture<BundleResult> bundleToZip(Pack pack, Version targetGameVersion, OutputStream output, Collection<ZipIndex> previous) {
+		return first(bundleToZip(pack, List.of(targetGameVersion), List.of(output), previous));
+	}
+
+	public CompletableFuture<List<BundleResult>> bundleToZip(Pack pack, List<Version> targetGameVersions, List<OutputStream> outputs) {
+		return bundleToZip(pack, targetGameVersions, outputs, List.of());
+	}
+
+	public CompletableFuture<List<BundleResult>> bundleToZip(Pack pack, List<Version> targetGameVersions, List<OutputStream> outputs, Collection<ZipIndex> previous) {
+		if (targetGameVersions.isEmpty()) throw new IllegalArgumentException("No target game versions");
+		if (targetGameVersions.size() != outputs.size()) throw new IllegalArgumentException("Expected " + targetGameVersions.size() + " output streams, but " + outputs.size() + " were given");
+		VfsStats stats = profiling? new VfsStats() : null;
+		ZipPipeline zip;
+
+		try {
+			zip = new ZipPipeline(stats != null? stats.wrap(executor) : executor, Runtime.getRuntime().availableProcessors(), compressionPolicy);
+			if (reproducible) zip.setTime(ZipWriter.REPRODUCIBLE_TIME);
+			zip.setIndexed(indexed);
+			for (ZipIndex index : previous) zip.reuseFrom(index);
 		} catch (IOException e) {
-			throw new RuntimeException(e);
+			return CompletableFuture.failedFuture(new RuntimeException("Failed to create zip pipeline", e));
 		}
 
+		return bundleAsync(pack, targetGameVersions, zip, outputs, stats);
+	}
+
+	private static CompletableFuture<BundleResult> first(CompletableFuture<List<BundleResult>> results) {
+		CompletableFuture<BundleResult> first = results.thenApply(list -> list.get(0));
+		first.whenComplete((result, e) -> {
+			if (first.isCancelled()) results.cancel(true);
+		});
+		return first;
+	}
+
+	private CompletableFuture<List<BundleResult>> bundleAsync(Pack pack, List<Version> targetGameVersions, ZipPipeline zip, List<OutputStream> outputs, VfsStats stats) {
+		// Shared between all virtual roots, so identical contents from different packs are only stored once
+		boolean sharedMemo = this.memo != null;
+		BundleMemo memo = sharedMemo? this.memo : new BundleMemo();
+		// Only tasks of this build are counted, so concurrent builds are not included in statistics
+		Executor executor = stats != null? stats.wrap(this.executor) : this.executor;
+		BundleRun run = new BundleRun(memo.getBlobStore(memoryBudget), memo, pack, zip, executor);
+		CompletableFuture<List<BundleResult>> result = new CompletableFuture<>();
+
+		CompletableFuture.runAsync(() -> startStage(BundleStage.RESOLVE, pack, run), executor)
+		.thenCompose(v -> resolveDependencies(pack, executor))
+		.thenComposeAsync(graph -> {
+			// Dependencies are resolved on multiple threads; nothing else was counted for this build yet
+			if (stats != null) listener.onStageStatistics(BundleStage.RESOLVE, pack, stats.getFilesTouched(), stats.getBytesRead(), stats.getBytesWritten());
+			listener.onStageFinished(BundleStage.RESOLVE, pack);
+			if (buildCache == null) return bundleGraph(graph, targetGameVersions, null, run);
+
+			return computeFingerprints(graph, executor).thenComposeAsync(v -> {
+				List<String> fingerprints = targetGameVersions.stream().map(target -> computeResultFingerprint(graph, target)).toList();
+				List<BundleResult> cached = loadCachedResults(targetGameVersions, fingerprints, run);
+				if (cached != null) return CompletableFuture.completedFuture(cached);
+				return bundleGraph(graph, targetGameVersions, fingerprints, run);
+			}, executor);
+		}, executor)
+		.thenCompose(bundled -> zip != null? writeZips(pack, run, bundled, outputs) : CompletableFuture.completedFuture(bundled))
+		.whenComplete((bundled, e) -> {
+			if (zip != null) zip.close();
+
+			// Contents of bundleAsync() results are still backed by the store, and shared memo is closed by its owner
+			if (!sharedMemo && (e != null || zip != null)) memo.close();
+			if (e != null) result.completeExceptionally(e instanceof CompletionException? e.getCause() : e);
+			else result.complete(bundled);
+		});
+
+		result.whenComplete((bundled, e) -> {
+			if (result.isCancelled()) run.cancel();
+		});
+
 		return result;
 	}
+
+	private CompletableFuture<List<BundleResult>> bundleGraph(DependencyGraph graph, List<Version> targetGameVersions, List<String> fingerprints, BundleRun run) {
+		// The root pack is never memorized, because finalizing modifiers will modify the bundle
+		return bundleWithoutFinish(graph.getRoot(), run).thenApplyAsync(ctx -> finish(graph, ctx, targetGameVersions, fingerprints), run.executor);
+	}
+
+	private List<BundleResult> loadCachedResults(List<Version> targetGameVersions, List<String> fingerprints, BundleRun run) {
+		List<BundleResult> results = new ArrayList<>();
+
+		for (int i = 0; i < targetGameVersions.size(); i++) {
+			// Modifiers are checked first, so stages without modifiers are not counted as hits
+			Map<ResourcePath, Modifier<?, ?>> cachedModifiers = buildCache.loadModifiers(fingerprints.get(i), modifiers);
+			if (cachedModifiers == null) return null;
+
+			Vfs cached = buildCache.load(fingerprints.get(i), run.blobs);
+			if (cached == null) return null;
+
+			BundleResult result = new BundleResult(cached);
+			result.modifiers = cachedModifiers;
+			result.fingerprint = fingerprints.get(i);
+			result.targetGameVersion = targetGameVersions.get(i);
+			results.add(result);
+		}
+
+		return results;
+	}
+
+	private CompletableFuture<List<BundleResult>> writeZips(Pack pack, BundleRun run, List<BundleResult> bundled, List<OutputStream> outputs) {
+		CompletableFuture<Void> future = CompletableFuture.completedFuture(null);
+
+		for (int i = 0; i < bundled.size(); i++) {
+			BundleResult result = bundled.get(i);
+			OutputStream output = outputs.get(i);
+			boolean keep = i < bundled.size() - 1;
+
+			future = future.thenCompose(v -> {
+				startStage(BundleStage.ZIP, pack, run);
+				long bytesCompressed = run.zip.getBytesCompressed();
+
+				// Entries compressed for the last output are written right away instead of being kept for next outputs
+				return run.zip.finish(result.contents, output, keep).thenRun(() -> {
+					listener.onStageStatistics(BundleStage.ZIP, pack, run.zip.getEntriesWritten(), run.zip.getBytesCompressed() - bytesCompressed, run.zip.getBytesWritten());
+					listener.onStageFinished(BundleStage.ZIP, pack);
+				});
+			});
+		}
+
+		return future.thenApply(v -> bundled);
+	}
+
+	private List<BundleResult> finish(DependencyGraph graph, BundleContext ctx, List<Version> targetGameVersions, List<String> fingerprints) {
+		Pack pack = graph.getRoot().pack;
+		startStage(BundleStage.FINALIZE, pack, ctx.run);
+		Vfs licenses = Vfs.createVirtualRoot(ctx.run.blobs);
+		Vfs finalOutput = Vfs.createVirtualRoot(ctx.run.blobs);
+
+		// Licenses & pack.png
+		if (includeLicenses) {
+			for (DependencyGraph.Node node : graph.getNodes()) {
+				Vfs nodeVfs = node.pack.createVfs();
+
+				for (String licenseFileName : licenseFileNames) {
+					Vfs f = nodeVfs.get(licenseFileName);
+					if (f != null) licenses.graft("license-" + node.id.name, f);
+				}
+			}
+		}
+
+		Vfs packPng = pack.createVfs().get("pack.png");
+		if (packPng != null) finalOutput.graft(packPng);
+
+		Vfs.copyRecursive(licenses, ctx.content);
+		Vfs.copyRecursive(finalOutput, ctx.content);
+
+		for (Modifier<?, ?> modifier : ctx.modifiers.values()) {
+			ctx.checkCancelled();
+			modifier.finalizeModifier(ctx.content, modifiers);
+		}
+
+		// Only pack.mcmeta depends on target game version, so other results are snapshots that shares everything else
+		List<Vfs> contents = new ArrayList<>();
+		contents.add(ctx.content);
+		for (int i = 1; i < targetGameVersions.size(); i++) contents.add(ctx.content.snapshot());
+		List<BundleResult> results = new ArrayList<>();
+
+		for (int i = 0; i < targetGameVersions.size(); i++) {
+			try {
+				IOUtils.jsonToVfs(pack.getIndex().buildPackMcmeta(targetGameVersions.get(i)), contents.get(i).touch("pack.mcmeta"));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+
+			BundleResult result = new BundleResult(contents.get(i));
+			result.modifiers = ctx.modifiers;
+			result.fingerprint = fingerprints != null? fingerprints.get(i) : null;
+			result.targetGameVersion = targetGameVersions.get(i);
+			if (buildCache != null) {
+				buildCache.store(result.fingerprint, result.contents);
+				buildCache.storeModifiers(result.fingerprint, ctx.modifiers, modifiers);
+			}
+			results.add(result);
+		}
+
+		listener.onStageFinished(BundleStage.FINALIZE, pack);
+		return results;
+	}
 }
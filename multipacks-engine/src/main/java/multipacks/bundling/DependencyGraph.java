@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.bundling;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import multipacks.packs.Pack;
+import multipacks.packs.meta.PackIdentifier;
+import multipacks.utils.Messages;
+
+/**
+ * @author nahkd
+ *
+ */
+public class DependencyGraph {
+	private final Map<PackIdentifier, Node> nodes = new ConcurrentHashMap<>();
+	private final Node root;
+	private List<Node> sortedNodes;
+
+	DependencyGraph(Pack root) {
+		this.root = new Node(getIdentifier(root), root);
+		nodes.put(this.root.id, this.root);
+	}
+
+	static PackIdentifier getIdentifier(Pack pack) {
+		return new PackIdentifier(pack.getIndex().name, pack.getIndex().packVersion);
+	}
+
+	Node add(Pack pack) {
+		Node node = new Node(getIdentifier(pack), pack);
+		return nodes.putIfAbsent(node.id, node) == null? node : null;
+	}
+
+	void sort() {
+		List<Node> sorted = new ArrayList<>();
+		Map<Node, Boolean> visiting = new HashMap<>();
+		visit(root, visiting, new ArrayList<>(), sorted);
+		sortedNodes = Collections.unmodifiableList(sorted);
+	}
+
+	private static void visit(Node node, Map<Node, Boolean> visiting, List<PackIdentifier> path, List<Node> sorted) {
+		Boolean state = visiting.get(node);
+		path.add(node.id);
+
+		if (state == Boolean.TRUE) {
+			List<PackIdentifier> cycle = path.subList(path.indexOf(node.id), path.size());
+			throw new IllegalArgumentException(Messages.dependencyCycle(cycle));
+		}
+
+		if (state == null) {
+			visiting.put(node, true);
+			for (Node dependency : node.dependencies) visit(dependency, visiting, path, sorted);
+			visiting.put(node, false);
+			sorted.add(node);
+		}
+
+		path.remove(path.size() - 1);
+	}
+
+	public Node getRoot() {
+		return root;
+	}
+
+	public Node getNode(PackIdentifier id) {
+		return nodes.get(id);
+	}
+
+	public List<Node> getNodes() {
+		return sortedNodes;
+	}
+
+	public static class Node {
+		public final PackIdentifier id;
+		public final Pack pack;
+		List<Node> dependencies = Collections.emptyList();
+		String fingerprint;
+
+		Node(PackIdentifier id, Pack pack) {
+			this.id = id;
+			this.pack = pack;
+		}
+
+		public Collection<Node> getDependencies() {
+			return Collections.unmodifiableList(dependencies);
+		}
+
+		public String getFingerprint() {
+			return fingerprint;
+		}
+
+		@Override
+		public String toString() {
+			return "DependencyGraph.Node(" + id.name + " version " + id.packVersion.toStringNoPrefix() + ")";
+		}
+	}
+}
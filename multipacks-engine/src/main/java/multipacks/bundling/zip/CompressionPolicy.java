@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.bundling.zip;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * @author nahkd
+ *
+ */
+public class CompressionPolicy {
+	public static final int STORED = -2;
+
+	public static final String KEY_DEFAULT = "default";
+	public static final String KEY_ADAPTIVE = "adaptive";
+	public static final String KEY_STORE_ALREADY_COMPRESSED = "storeAlreadyCompressed";
+	public static final String VALUE_STORED = "stored";
+
+	public static final String[] ALREADY_COMPRESSED = { "png", "ogg", "jpg", "jpeg", "zip" };
+
+	public static final int SAMPLE_SIZE = 64 * 1024;
+
+	private final List<Rule> rules = new ArrayList<>();
+	private int defaultLevel = Deflater.DEFAULT_COMPRESSION;
+	private int adaptiveSavings = -1;
+
+	public static CompressionPolicy createDefault() {
+		return new CompressionPolicy().storeAlreadyCompressed();
+	}
+
+	public CompressionPolicy addRule(String glob, int level) {
+		rules.add(new Rule(glob, checkLevel(level)));
+		return this;
+	}
+
+	public CompressionPolicy storeAlreadyCompressed() {
+		for (String ext : ALREADY_COMPRESSED) addRule("*." + ext, STORED);
+		return this;
+	}
+
+	public CompressionPolicy setDefaultLevel(int level) {
+		defaultLevel = checkLevel(level);
+		return this;
+	}
+
+	public CompressionPolicy setAdaptive(int minSavings) {
+		if (minSavings > 100) throw new IllegalArgumentException("Invalid minimum savings: " + minSavings + "% (expected 0 to 100)");
+		adaptiveSavings = minSavings;
+		return this;
+	}
+
+	public boolean isAdaptive() {
+		return adaptiveSavings >= 0;
+	}
+
+	public int getAdaptiveSavings() {
+		return adaptiveSavings;
+	}
+
+	public int getLevel(String path) {
+		String name = path.substring(path.lastIndexOf('/') + 1);
+
+		for (Rule rule : rules) {
+			if (rule.pattern.matcher(rule.fullPath? path : name).matches()) return rule.level;
+		}
+
+		return defaultLevel;
+	}
+
+	public boolean isWorthCompressing(long size, long compressedSize) {
+		if (!isAdaptive()) return true;
+		return compressedSize * 100 <= size * (100 - adaptiveSavings);
+	}
+
+	public static CompressionPolicy fromJson(JsonObject json) {
+		CompressionPolicy policy = new CompressionPolicy();
+		boolean storeAlreadyCompressed = true;
+
+		for (Map.Entry<String, JsonElement> e : json.entrySet()) {
+			if (e.getKey().equals(KEY_ADAPTIVE)) policy.setAdaptive(e.getValue().getAsInt());
+			else if (e.getKey().equals(KEY_DEFAULT)) policy.setDefaultLevel(parseLevel(e.getValue().getAsString()));
+			else if (e.getKey().equals(KEY_STORE_ALREADY_COMPRESSED)) storeAlreadyCompressed = e.getValue().getAsBoolean();
+			else policy.addRule(e.getKey(), parseLevel(e.getValue().getAsString()));
+		}
+
+		return storeAlreadyCompressed? policy.storeAlreadyCompressed() : policy;
+	}
+
+	public static CompressionPolicy parse(String str) {
+		JsonObject json = new JsonObject();
+
+		for (String entry : str.split(",")) {
+			if (entry.isBlank()) continue;
+			int split = entry.lastIndexOf('=');
+			if (split == -1) throw new IllegalArgumentException("Invalid compression rule: '" + entry + "' (expected <glob>=<level>)");
+			json.addProperty(entry.substring(0, split).trim(), entry.substring(split + 1).trim());
+		}
+
+		return fromJson(json);
+	}
+
+	public JsonObject toJson() {
+		JsonObject json = new JsonObject();
+
+		for (Rule rule : rules) {
+			if (!json.has(rule.glob)) json.addProperty(rule.glob, levelToString(rule.level));
+		}
+
+		json.addProperty(KEY_DEFAULT, levelToString(defaultLevel));
+		if (isAdaptive()) json.addProperty(KEY_ADAPTIVE, adaptiveSavings);
+
+		// Rules for already compressed files are already written above
+		json.addProperty(KEY_STORE_ALREADY_COMPRESSED, false);
+		return json;
+	}
+
+	private static int parseLevel(String str) {
+		if (str.equalsIgnoreCase(VALUE_STORED)) return STORED;
+
+		try {
+			return Integer.parseInt(str);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid compression level: '" + str + "' (expected 0 to 9 or '" + VALUE_STORED + "')");
+		}
+	}
+
+	private static String levelToString(int level) {
+		return level == STORED? VALUE_STORED : Integer.toString(level);
+	}
+
+	private static int checkLevel(int level) {
+		if (level != STORED && (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)) throw new IllegalArgumentException("Invalid compression level: " + level + " (expected 0 to 9 or STORED)");
+		return level;
+	}
+
+	private static class Rule {
+		final String glob;
+		final boolean fullPath;
+		final Pattern pattern;
+		final int level;
+
+		Rule(String glob, int level) {
+			this.glob = glob;
+			this.fullPath = glob.contains("/");
+			this.pattern = compileGlob(glob);
+			this.level = level;
+		}
+
+		private static Pattern compileGlob(String glob) {
+			StringBuilder regex = new StringBuilder();
+
+			for (int i = 0; i < glob.length(); i++) {
+				char ch = glob.charAt(i);
+
+				if (ch == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+					regex.append(".*");
+					i++;
+				} else if (ch == '*') {
+					regex.append("[^/]*");
+				} else if (ch == '?') {
+					regex.append("[^/]");
+				} else {
+					regex.append(Pattern.quote(String.valueOf(ch)));
+				}
+			}
+
+			return Pattern.compile(regex.toString());
+		}
+	}
+}
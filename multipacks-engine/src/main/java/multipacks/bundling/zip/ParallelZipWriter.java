@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.bundling.zip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import multipacks.vfs.Vfs;
+
+/**
+ * @author nahkd
+ *
+ */
+public class ParallelZipWriter {
+	private final Executor executor;
+	private final int parallelism;
+	private final CompressionPolicy policy;
+	private long time = System.currentTimeMillis();
+	private boolean indexed = false;
+	private final List<ZipIndex> previous = new ArrayList<>();
+	private int entriesReused = 0;
+
+	public ParallelZipWriter(Executor executor, int parallelism, CompressionPolicy policy) {
+		this.executor = executor;
+		this.parallelism = parallelism;
+		this.policy = policy;
+	}
+
+	public ParallelZipWriter(Executor executor, int parallelism, int level) {
+		this(executor, parallelism, CompressionPolicy.createDefault().setDefaultLevel(level));
+	}
+
+	public ParallelZipWriter setTime(long millis) {
+		this.time = millis;
+		return this;
+	}
+
+	/**
+	 * Record content hashes of entries, so they can be reused by next writes. Always enabled when reusing entries.
+	 */
+	public ParallelZipWriter setIndexed(boolean indexed) {
+		this.indexed = indexed;
+		return this;
+	}
+
+	public ParallelZipWriter reuseFrom(ZipIndex index) {
+		previous.add(index);
+		return this;
+	}
+
+	public int getEntriesReused() {
+		return entriesReused;
+	}
+
+	public void write(Vfs contents, OutputStream output) throws IOException {
+		ZipWriter zip = new ZipWriter(output).setTime(time);
+		Iterator<Vfs> files = sortedFiles(contents).iterator();
+		Deque<Pending> window = new ArrayDeque<>();
+		boolean indexed = this.indexed || !previous.isEmpty();
+		entriesReused = 0;
+
+		try {
+			while (files.hasNext() || !window.isEmpty()) {
+				// Keep workers busy while the oldest entry is being written
+				while (window.size() < Math.max(parallelism, 1) * 2 && files.hasNext()) {
+					Vfs file = files.next();
+					String name = file.getPathFromRoot().toString();
+					window.add(new Pending(name, parallelism > 1
+							? CompletableFuture.supplyAsync(() -> compress(name, file, policy, previous, indexed), executor)
+							: CompletableFuture.completedFuture(compress(name, file, policy, previous, indexed))));
+				}
+
+				Pending pending = window.poll();
+				Compressed entry = join(pending.data);
+				zip.beginEntry(pending.name, entry.method, entry.crc, entry.size, entry.compressedSize, entry.extra);
+				entry.writeTo(zip);
+				if (entry.previous != null) entriesReused++;
+			}
+
+			zip.finish();
+		} finally {
+			for (Pending pending : window) pending.data.cancel(false);
+		}
+	}
+
+	static List<Vfs> sortedFiles(Vfs contents) {
+		return contents.files()
+				.map(file -> Map.entry(file.getPathFromRoot().toString(), file))
+				.sorted(Map.Entry.comparingByKey())
+				.map(Map.Entry::getValue)
+				.toList();
+	}
+
+	private static Compressed join(CompletableFuture<Compressed> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException re) throw re;
+			throw e;
+		}
+	}
+
+	static Compressed compress(String path, Vfs file, CompressionPolicy policy, List<ZipIndex> previous, boolean indexed) {
+		// Entries without content hashes are never reused
+		String hash = indexed? file.getContentHash() : null;
+		ByteBuffer content = file.getContentBuffer();
+		int size = content.remaining();
+		int level = policy.getLevel(path);
+		byte[] extra = indexed? ZipIndex.createContentExtra(hash, level, policy.getAdaptiveSavings()) : null;
+
+		for (ZipIndex index : previous) {
+			ZipIndex.Entry entry = index.find(path, hash, size);
+			if (entry == null || !isCompatible(entry, level, policy)) continue;
+
+			try {
+				return new Compressed(entry.method, entry.crc, size, entry.compressedSize, extra, index, index.getDataOffset(entry));
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to read " + path + " from " + index.file, e);
+			}
+		}
+
+		java.nio.file.Path nativePath = file.getNativePath();
+		boolean transferable = nativePath != null && nativePath.getFileSystem() == FileSystems.getDefault() && size >= Vfs.MAPPING_THRESHOLD;
+		FileTime modified;
+
+		try {
+			// Checked again while transferring, so the file can't be modified after computing CRC
+			modified = transferable? Files.getLastModifiedTime(nativePath) : null;
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to read " + nativePath, e);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(content.duplicate());
+
+		if (level != CompressionPolicy.STORED && policy.isAdaptive() && size > CompressionPolicy.SAMPLE_SIZE) {
+			ByteBuffer sample = content.duplicate();
+			sample.limit(sample.position() + CompressionPolicy.SAMPLE_SIZE);
+			if (!policy.isWorthCompressing(CompressionPolicy.SAMPLE_SIZE, deflate(sample, level).length)) level = CompressionPolicy.STORED;
+		}
+
+		if (level != CompressionPolicy.STORED) {
+			byte[] data = deflate(content, level);
+			if (policy.isWorthCompressing(size, data.length)) return new Compressed(ZipWriter.METHOD_DEFLATED, crc.getValue(), size, ByteBuffer.wrap(data), extra, null, null);
+		}
+
+		if (transferable) return new Compressed(ZipWriter.METHOD_STORED, crc.getValue(), size, null, extra, nativePath, modified);
+		return new Compressed(ZipWriter.METHOD_STORED, crc.getValue(), size, content, extra, null, null);
+	}
+
+	private static boolean isCompatible(ZipIndex.Entry entry, int level, CompressionPolicy policy) {
+		return entry.level == level && entry.adaptiveSavings == Math.max(policy.getAdaptiveSavings(), -1);
+	}
+
+	private static byte[] deflate(ByteBuffer content, int level) {
+		Deflater deflater = new Deflater(level, true);
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+
+		try {
+			deflater.setInput(content.duplicate());
+			deflater.finish();
+			while (!deflater.finished()) data.write(buffer, 0, deflater.deflate(buffer));
+		} finally {
+			deflater.end();
+		}
+
+		return data.toByteArray();
+	}
+
+	static void transferSource(ZipWriter zip, java.nio.file.Path source, long size, FileTime modified) throws IOException {
+		try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+			checkSource(channel, source, size, modified);
+			zip.transferEntryData(channel, 0, size);
+			checkSource(channel, source, size, modified);
+		}
+	}
+
+	private static void checkSource(FileChannel channel, java.nio.file.Path source, long size, FileTime modified) throws IOException {
+		if (channel.size() != size || !Files.getLastModifiedTime(source).equals(modified)) throw new IOException(source + " was modified while writing zip file");
+	}
+
+	static class Compressed {
+		final int method;
+		final long crc;
+		final long size;
+		final long compressedSize;
+
+		final byte[] extra;
+
+		final ByteBuffer data;
+
+		final java.nio.file.Path source;
+		final FileTime sourceModified;
+
+		final ZipIndex previous;
+		final long previousOffset;
+
+		Compressed(int method, long crc, long size, ByteBuffer data, byte[] extra, java.nio.file.Path source, FileTime sourceModified) {
+			this.method = method;
+			this.crc = crc;
+			this.size = size;
+			this.compressedSize = data != null? data.remaining() : size;
+			this.extra = extra;
+			this.data = data;
+			this.source = source;
+			this.sourceModified = sourceModified;
+			this.previous = null;
+			this.previousOffset = -1;
+		}
+
+		Compressed(int method, long crc, long size, long compressedSize, byte[] extra, ZipIndex previous, long previousOffset) {
+			this.method = method;
+			this.crc = crc;
+			this.size = size;
+			this.compressedSize = compressedSize;
+			this.extra = extra;
+			this.data = null;
+			this.source = null;
+			this.sourceModified = null;
+			this.previous = previous;
+			this.previousOffset = previousOffset;
+		}
+
+		void writeTo(ZipWriter zip) throws IOException {
+			if (data != null) {
+				zip.writeEntryData(data);
+				return;
+			}
+
+			if (previous != null) {
+				zip.transferEntryData(previous.channel, previousOffset, compressedSize);
+				return;
+			}
+
+			transferSource(zip, source, size, sourceModified);
+		}
+	}
+
+	private static class Pending {
+		final String name;
+		final CompletableFuture<Compressed> data;
+
+		Pending(String name, CompletableFuture<Compressed> data) {
+			this.name = name;
+			this.data = data;
+		}
+	}
+}
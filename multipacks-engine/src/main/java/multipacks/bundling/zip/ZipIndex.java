@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.bundling.zip;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+
+/**
+ * @author nahkd
+ *
+ */
+public class ZipIndex implements Closeable {
+	private static final int LOCAL_HEADER = 0x04034b50;
+	private static final int CENTRAL_HEADER = 0x02014b50;
+	private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+	private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+	private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+	private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR = 0x07064b50;
+	private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE = 20;
+	private static final int ZIP64_EXTRA = 0x0001;
+	private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+	private static final int FLAG_ENCRYPTED = 0x0001;
+	private static final long MAX_32 = 0xFFFFFFFFL;
+
+	static final int CONTENT_EXTRA = 0x504d;
+	private static final int HASH_SIZE = 20;
+	private static final int CONTENT_EXTRA_SIZE = HASH_SIZE + 2;
+
+	public final Path file;
+	final FileChannel channel;
+	private final Map<String, Entry> entries = new HashMap<>();
+
+	private ZipIndex(Path file, FileChannel channel) {
+		this.file = file;
+		this.channel = channel;
+	}
+
+	/**
+	 * The file must not be modified until this index is closed.
+	 */
+	public static ZipIndex open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+		try {
+			ZipIndex index = new ZipIndex(file, channel);
+			index.readCentralDirectory();
+			return index;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	static byte[] createContentExtra(String hash, int level, int adaptiveSavings) {
+		ByteBuffer extra = ByteBuffer.allocate(4 + CONTENT_EXTRA_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		extra.putShort((short) CONTENT_EXTRA);
+		extra.putShort((short) CONTENT_EXTRA_SIZE);
+		extra.put(HexFormat.of().parseHex(hash));
+		extra.put((byte) level);
+		extra.put((byte) Math.max(adaptiveSavings, -1));
+		return extra.array();
+	}
+
+	private void readCentralDirectory() throws IOException {
+		long size = channel.size();
+		int tailSize = (int) Math.min(size, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_LENGTH);
+		long tailOffset = size - tailSize;
+		ByteBuffer tail = read(tailOffset, tailSize);
+		int end = -1;
+
+		for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+			if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+				end = i;
+				break;
+			}
+		}
+
+		if (end == -1) throw new IOException("Not a zip file: " + file);
+		long directorySize = Integer.toUnsignedLong(tail.getInt(end + 12));
+		long directoryOffset = Integer.toUnsignedLong(tail.getInt(end + 16));
+		int locator = end - ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE;
+
+		if (locator >= 0 && tail.getInt(locator) == ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR) {
+			long zip64End = tail.getLong(locator + 8);
+			if (zip64End < 0 || zip64End + 56 > tailOffset + locator) throw new IOException("Invalid Zip64 end of central directory: " + file);
+			ByteBuffer end64 = read(zip64End, 56);
+			if (end64.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY) throw new IOException("Invalid Zip64 end of central directory: " + file);
+			directorySize = end64.getLong(40);
+			directoryOffset = end64.getLong(48);
+		}
+
+		if (directorySize < 0 || directoryOffset < 0 || directoryOffset + directorySize > size || directorySize > Integer.MAX_VALUE) throw new IOException("Invalid central directory: " + file);
+		ByteBuffer directory = read(directoryOffset, (int) directorySize);
+
+		while (directory.remaining() >= 46) {
+			int pos = directory.position();
+			if (directory.getInt(pos) != CENTRAL_HEADER) throw new IOException("Invalid central directory: " + file);
+
+			int flags = Short.toUnsignedInt(directory.getShort(pos + 8));
+			int method = Short.toUnsignedInt(directory.getShort(pos + 10));
+			long crc = Integer.toUnsignedLong(directory.getInt(pos + 16));
+			long compressedSize = Integer.toUnsignedLong(directory.getInt(pos + 20));
+			long entrySize = Integer.toUnsignedLong(directory.getInt(pos + 24));
+			int nameLength = Short.toUnsignedInt(directory.getShort(pos + 28));
+			int extraLength = Short.toUnsignedInt(directory.getShort(pos + 30));
+			int commentLength = Short.toUnsignedInt(directory.getShort(pos + 32));
+			long localOffset = Integer.toUnsignedLong(directory.getInt(pos + 42));
+			if (pos + 46 + nameLength + extraLength + commentLength > directory.limit()) throw new IOException("Invalid central directory: " + file);
+
+			byte[] nameBytes = new byte[nameLength];
+			directory.position(pos + 46);
+			directory.get(nameBytes);
+
+			String hash = null;
+			int level = 0, adaptiveSavings = 0;
+			int extraEnd = pos + 46 + nameLength + extraLength;
+
+			for (int field = pos + 46 + nameLength; field + 4 <= extraEnd;) {
+				int id = Short.toUnsignedInt(directory.getShort(field));
+				int data = field + 4;
+				int dataEnd = data + Short.toUnsignedInt(directory.getShort(field + 2));
+				if (dataEnd > extraEnd) break;
+
+				if (id == ZIP64_EXTRA) {
+					// Only fields that are too large for the header are stored, in this order
+					if (entrySize == MAX_32 && data + 8 <= dataEnd) {
+						entrySize = directory.getLong(data);
+						data += 8;
+					}
+
+					if (compressedSize == MAX_32 && data + 8 <= dataEnd) {
+						compressedSize = directory.getLong(data);
+						data += 8;
+					}
+
+					if (localOffset == MAX_32 && data + 8 <= dataEnd) localOffset = directory.getLong(data);
+				} else if (id == CONTENT_EXTRA && dataEnd - data == CONTENT_EXTRA_SIZE) {
+					byte[] hashBytes = new byte[HASH_SIZE];
+					directory.get(data, hashBytes);
+					hash = HexFormat.of().formatHex(hashBytes);
+					level = directory.get(dataEnd - 2);
+					adaptiveSavings = directory.get(dataEnd - 1);
+				}
+
+				field = dataEnd;
+			}
+
+			directory.position(extraEnd + commentLength);
+
+			boolean supported = (method == ZipWriter.METHOD_STORED || method == ZipWriter.METHOD_DEFLATED)
+					&& (flags & FLAG_ENCRYPTED) == 0
+					&& compressedSize != MAX_32 && entrySize != MAX_32 && localOffset != MAX_32;
+			if (supported) entries.put(new String(nameBytes, StandardCharsets.UTF_8), new Entry(method, crc, entrySize, compressedSize, localOffset, hash, level, adaptiveSavings));
+		}
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Unexpected end of zip file: " + file);
+		}
+
+		return buffer.flip();
+	}
+
+	public Entry find(String path, String hash, long size) {
+		Entry entry = entries.get(path);
+		if (entry == null || !hash.equals(entry.hash) || entry.size != size) return null;
+		return entry;
+	}
+
+	long getDataOffset(Entry entry) throws IOException {
+		if (entry.dataOffset == -1) {
+			ByteBuffer local = read(entry.localOffset, 30);
+			if (local.getInt(0) != LOCAL_HEADER) throw new IOException("Invalid local header: " + file);
+			entry.dataOffset = entry.localOffset + 30 + Short.toUnsignedInt(local.getShort(26)) + Short.toUnsignedInt(local.getShort(28));
+		}
+
+		return entry.dataOffset;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	public static class Entry {
+		public final int method;
+		public final long crc;
+		public final long size;
+		public final long compressedSize;
+
+		public final String hash;
+
+		public final int level;
+
+		public final int adaptiveSavings;
+		final long localOffset;
+		volatile long dataOffset = -1;
+
+		Entry(int method, long crc, long size, long compressedSize, long localOffset, String hash, int level, int adaptiveSavings) {
+			this.method = method;
+			this.crc = crc;
+			this.size = size;
+			this.compressedSize = compressedSize;
+			this.localOffset = localOffset;
+			this.hash = hash;
+			this.level = level;
+			this.adaptiveSavings = adaptiveSavings;
+		}
+	}
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.bundling.zip;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import multipacks.utils.Messages;
+import multipacks.vfs.Vfs;
+import multipacks.vfs.VfsChange;
+
+/**
+ * @author nahkd
+ *
+ */
+public class ZipPipeline implements Closeable {
+	private final Executor executor;
+	private final int parallelism;
+	private final CompressionPolicy policy;
+	private final FileChannel spill;
+	private final AtomicLong spillSize = new AtomicLong();
+	private final Map<String, Entry> compressed = new ConcurrentHashMap<>();
+	private final Set<String> claimed = ConcurrentHashMap.newKeySet();
+	private CompletableFuture<Void> workers = CompletableFuture.completedFuture(null);
+	private volatile boolean stopPrefetching = false;
+	private volatile boolean cancelled = false;
+	private final AtomicLong bytesCompressed = new AtomicLong();
+	private volatile long entriesWritten = 0;
+	private volatile long bytesWritten = 0;
+	private long time = System.currentTimeMillis();
+	private volatile boolean indexed = false;
+	private final List<ZipIndex> previous = new CopyOnWriteArrayList<>();
+	private final AtomicLong entriesReused = new AtomicLong();
+
+	public ZipPipeline(Executor executor, int parallelism, CompressionPolicy policy) throws IOException {
+		this.executor = executor;
+		this.parallelism = Math.max(parallelism, 1);
+		this.policy = policy;
+		this.spill = FileChannel.open(Files.createTempFile("multipacks-zip-", ".tmp"), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+	}
+
+	public ZipPipeline setTime(long millis) {
+		this.time = millis;
+		return this;
+	}
+
+	public ZipPipeline setIndexed(boolean indexed) {
+		this.indexed = indexed;
+		return this;
+	}
+
+	public ZipPipeline reuseFrom(ZipIndex index) {
+		previous.add(index);
+		return this;
+	}
+
+	/**
+	 * The snapshot must not be modified after this call. Files are only compressed once, even if they are
+	 * prefetched from multiple snapshots; files that are changed in final contents are compressed again.
+	 */
+	public synchronized void prefetch(Vfs snapshot) {
+		if (stopPrefetching) return;
+		List<Vfs> files = snapshot.files().filter(file -> claimed.add(file.getPathFromRoot().toString())).toList();
+		workers = CompletableFuture.allOf(workers, compressAll(snapshot, files.iterator(), () -> stopPrefetching || cancelled));
+	}
+
+	public CompletableFuture<Void> finish(Vfs contents, OutputStream output) {
+		return finish(contents, output, true);
+	}
+
+	/**
+	 * Write zip entries in order as soon as they are compressed.
+	 * @param keep Keep entries that are compressed while writing, so the next call can reuse them.
+	 */
+	public synchronized CompletableFuture<Void> finish(Vfs contents, OutputStream output, boolean keep) {
+		// Files that are not compressed yet might be changed, so there is no reason to keep prefetching them
+		stopPrefetching = true;
+
+		CompletableFuture<Void> writing = workers.thenComposeAsync(v -> {
+			Vfs snapshot = contents.snapshot();
+			invalidate(snapshot);
+			return new Output(ParallelZipWriter.sortedFiles(snapshot), snapshot, output, keep).next();
+		}, executor);
+
+		workers = writing.exceptionally(e -> null);
+		return writing;
+	}
+
+	private void invalidate(Vfs snapshot) {
+		Map<Vfs, Set<String>> changed = new HashMap<>();
+		compressed.values().removeIf(entry -> changed.computeIfAbsent(entry.base, base -> changedPaths(base, snapshot)).contains(entry.name));
+
+		// Remaining entries are the same in final contents
+		for (Entry entry : compressed.values()) entry.base = snapshot;
+	}
+
+	private static Set<String> changedPaths(Vfs base, Vfs snapshot) {
+		Set<String> paths = new HashSet<>();
+
+		for (VfsChange change : Vfs.diff(base, snapshot)) {
+			if (change.type != VfsChange.Type.ADDED) paths.add(change.path.toString());
+		}
+
+		return paths;
+	}
+
+	private CompletableFuture<Void> compressAll(Vfs base, Iterator<Vfs> files, BooleanSupplier stop) {
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[parallelism];
+
+		for (int i = 0; i < parallelism; i++) futures[i] = CompletableFuture.runAsync(() -> {
+			// Each worker takes the next file once it finished the previous one, so workers never block each other
+			while (!stop.getAsBoolean()) {
+				Vfs file;
+
+				synchronized (files) {
+					if (!files.hasNext()) return;
+					file = files.next();
+				}
+
+				compressed.put(file.getPathFromRoot().toString(), compress(file, base, true));
+			}
+		}, executor);
+
+		return CompletableFuture.allOf(futures);
+	}
+
+	private Entry compress(Vfs file, Vfs base, boolean keep) {
+		String name = file.getPathFromRoot().toString();
+		ParallelZipWriter.Compressed data = ParallelZipWriter.compress(name, file, policy, previous, indexed || !previous.isEmpty());
+
+		Entry entry = new Entry();
+		entry.name = name;
+		entry.base = base;
+		entry.method = data.method;
+		entry.crc = data.crc;
+		entry.size = data.size;
+		entry.compressedSize = data.compressedSize;
+		entry.extra = data.extra;
+		entry.source = data.source;
+		entry.sourceModified = data.sourceModified;
+		entry.previous = data.previous;
+		entry.offset = data.previousOffset;
+
+		// Stored native files are transferred from the native file directly, so they are never spilled. Entries that
+		// are written right away are not spilled either
+		if (data.data != null && !keep) {
+			entry.data = data.data;
+		} else if (data.data != null) {
+			entry.offset = spillSize.getAndAdd(entry.compressedSize);
+
+			try {
+				ByteBuffer compressedData = data.data.duplicate();
+				long position = entry.offset;
+				while (compressedData.hasRemaining()) position += spill.write(compressedData, position);
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to write compressed data of " + file, e);
+			}
+		}
+
+		if (entry.previous != null) entriesReused.incrementAndGet();
+		else bytesCompressed.addAndGet(entry.size);
+		return entry;
+	}
+
+	public long getBytesCompressed() {
+		return bytesCompressed.get();
+	}
+
+	public long getEntriesReused() {
+		return entriesReused.get();
+	}
+
+	public long getEntriesWritten() {
+		return entriesWritten;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	@Override
+	public synchronized void close() {
+		cancelled = true;
+
+		workers.whenComplete((v, e) -> {
+			try {
+				spill.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		});
+	}
+
+	private class Output {
+		final List<Vfs> files;
+		final Vfs base;
+		final ZipWriter zip;
+		final boolean keep;
+		final List<CompletableFuture<Entry>> pending = new ArrayList<>();
+		int written = 0;
+
+		Output(List<Vfs> files, Vfs base, OutputStream output, boolean keep) {
+			this.files = files;
+			this.base = base;
+			this.zip = new ZipWriter(output).setTime(time);
+			this.keep = keep;
+		}
+
+		/**
+		 * Only one call is running at a time; waiting for an entry is done by continuing in another task.
+		 */
+		CompletableFuture<Void> next() {
+			try {
+				while (written < files.size()) {
+					if (cancelled) throw new CancellationException(Messages.BUNDLE_CANCELLED);
+
+					// Compress entries ahead, while the oldest entry is being written
+					while (pending.size() < files.size() && pending.size() < written + parallelism * 2) {
+						Vfs file = files.get(pending.size());
+						Entry entry = compressed.get(file.getPathFromRoot().toString());
+
+						if (entry != null) pending.add(CompletableFuture.completedFuture(entry));
+						else pending.add(CompletableFuture.supplyAsync(() -> {
+							Entry compressedEntry = compress(file, base, keep);
+							if (keep) compressed.put(compressedEntry.name, compressedEntry);
+							return compressedEntry;
+						}, executor));
+					}
+
+					CompletableFuture<Entry> future = pending.get(written);
+					if (!future.isDone()) return future.thenComposeAsync(e -> next(), executor);
+					write(future.getNow(null));
+
+					// Compressed data is no longer needed unless it is kept
+					pending.set(written++, null);
+				}
+
+				entriesWritten = files.size();
+				zip.finish();
+				bytesWritten = zip.getBytesWritten();
+				return CompletableFuture.completedFuture(null);
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to write zip file", e);
+			}
+		}
+
+		private void write(Entry entry) throws IOException {
+			zip.beginEntry(entry.name, entry.method, entry.crc, entry.size, entry.compressedSize, entry.extra);
+
+			if (entry.previous != null) {
+				zip.transferEntryData(entry.previous.channel, entry.offset, entry.compressedSize);
+			} else if (entry.source != null) {
+				ParallelZipWriter.transferSource(zip, entry.source, entry.size, entry.sourceModified);
+			} else if (entry.data != null) {
+				zip.writeEntryData(entry.data.duplicate());
+			} else {
+				zip.transferEntryData(spill, entry.offset, entry.compressedSize);
+			}
+		}
+	}
+
+	private static class Entry {
+		String name;
+		volatile Vfs base;
+		int method;
+		long crc;
+		long size;
+		long compressedSize;
+		byte[] extra;
+		long offset;
+		ByteBuffer data;
+		java.nio.file.Path source;
+		FileTime sourceModified;
+		ZipIndex previous;
+	}
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.bundling.zip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * @author nahkd
+ *
+ */
+public class ZipWriter {
+	public static final int METHOD_STORED = 0;
+	public static final int METHOD_DEFLATED = 8;
+
+	private static final int LOCAL_HEADER = 0x04034b50;
+	private static final int CENTRAL_HEADER = 0x02014b50;
+	private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+	private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+	private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR = 0x07064b50;
+	private static final int ZIP64_EXTRA = 0x0001;
+	private static final int EXTENDED_TIMESTAMP = 0x5455;
+	private static final int EXTENDED_TIMESTAMP_MODIFIED = 0x01;
+	private static final int EXTENDED_TIMESTAMP_CREATED = 0x04;
+	private static final int VERSION = 20;
+	private static final int VERSION_ZIP64 = 45;
+	private static final int FLAG_UTF8 = 0x0800;
+	public static final long REPRODUCIBLE_TIME = 0L;
+
+	private static final long MAX_32 = 0xFFFFFFFFL;
+	private static final int MAX_ENTRIES = 0xFFFF;
+
+	private final CountingOutputStream output;
+	private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+	private int entries = 0;
+	private long dosTime;
+	private long unixTime;
+	private long entryStart = -1;
+	private long entryCompressedSize;
+	private boolean finished = false;
+
+	public ZipWriter(OutputStream output) {
+		this.output = new CountingOutputStream(output);
+		setTime(System.currentTimeMillis());
+	}
+
+	public ZipWriter setTime(long millis) {
+		this.dosTime = toDosTime(millis);
+
+		// Same timestamps as ZipOutputStream with creation and last modified time; reproducible zip files only have
+		// the DOS time
+		this.unixTime = millis != REPRODUCIBLE_TIME? millis / 1000 : -1;
+		return this;
+	}
+
+	/**
+	 * Exactly {@code compressedSize} bytes must be written to the returned stream before the next entry.
+	 */
+	public OutputStream beginEntry(String name, int method, long crc, long size, long compressedSize) throws IOException {
+		return beginEntry(name, method, crc, size, compressedSize, null);
+	}
+
+	public OutputStream beginEntry(String name, int method, long crc, long size, long compressedSize, byte[] extra) throws IOException {
+		endEntry();
+		if (finished) throw new IOException("Zip file is already finished");
+
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		long offset = output.written;
+		boolean zip64Sizes = size >= MAX_32 || compressedSize >= MAX_32;
+		boolean zip64Offset = offset >= MAX_32;
+		int version = zip64Sizes || zip64Offset? VERSION_ZIP64 : VERSION;
+
+		// Local header only has sizes in its Zip64 extra field
+		int localExtra = (zip64Sizes? 20 : 0) + (unixTime != -1? 13 : 0);
+		ByteBuffer local = ByteBuffer.allocate(30 + nameBytes.length + localExtra).order(ByteOrder.LITTLE_ENDIAN);
+		local.putInt(LOCAL_HEADER);
+		local.putShort((short) version);
+		local.putShort((short) FLAG_UTF8);
+		local.putShort((short) method);
+		local.putInt((int) dosTime);
+		local.putInt((int) crc);
+		local.putInt((int) (zip64Sizes? MAX_32 : compressedSize));
+		local.putInt((int) (zip64Sizes? MAX_32 : size));
+		local.putShort((short) nameBytes.length);
+		local.putShort((short) localExtra);
+		local.put(nameBytes);
+
+		if (zip64Sizes) {
+			local.putShort((short) ZIP64_EXTRA);
+			local.putShort((short) 16);
+			local.putLong(size);
+			local.putLong(compressedSize);
+		}
+
+		if (unixTime != -1) {
+			local.putShort((short) EXTENDED_TIMESTAMP);
+			local.putShort((short) 9);
+			local.put((byte) (EXTENDED_TIMESTAMP_MODIFIED | EXTENDED_TIMESTAMP_CREATED));
+			local.putInt((int) unixTime);
+			local.putInt((int) unixTime);
+		}
+
+		output.write(local.array());
+
+		int zip64Extra = (zip64Sizes? 16 : 0) + (zip64Offset? 8 : 0);
+		if (zip64Extra > 0) zip64Extra += 4;
+		int centralExtra = zip64Extra + (extra != null? extra.length : 0) + (unixTime != -1? 9 : 0);
+		ByteBuffer central = ByteBuffer.allocate(46 + nameBytes.length + centralExtra).order(ByteOrder.LITTLE_ENDIAN);
+		central.putInt(CENTRAL_HEADER);
+		central.putShort((short) version);
+		central.putShort((short) version);
+		central.putShort((short) FLAG_UTF8);
+		central.putShort((short) method);
+		central.putInt((int) dosTime);
+		central.putInt((int) crc);
+		central.putInt((int) (zip64Sizes? MAX_32 : compressedSize));
+		central.putInt((int) (zip64Sizes? MAX_32 : size));
+		central.putShort((short) nameBytes.length);
+		central.putShort((short) centralExtra);
+		central.putShort((short) 0); // Comment length
+		central.putShort((short) 0); // Disk number
+		central.putShort((short) 0); // Internal attributes
+		central.putInt(0); // External attributes
+		central.putInt((int) (zip64Offset? MAX_32 : offset));
+		central.put(nameBytes);
+
+		if (zip64Extra > 0) {
+			central.putShort((short) ZIP64_EXTRA);
+			central.putShort((short) (zip64Extra - 4));
+
+			if (zip64Sizes) {
+				central.putLong(size);
+				central.putLong(compressedSize);
+			}
+
+			if (zip64Offset) central.putLong(offset);
+		}
+
+		if (extra != null) central.put(extra);
+
+		// Central directory only has the last modified time
+		if (unixTime != -1) {
+			central.putShort((short) EXTENDED_TIMESTAMP);
+			central.putShort((short) 5);
+			central.put((byte) (EXTENDED_TIMESTAMP_MODIFIED | EXTENDED_TIMESTAMP_CREATED));
+			central.putInt((int) unixTime);
+		}
+
+		centralDirectory.write(central.array());
+
+		entries++;
+		entryStart = output.written;
+		entryCompressedSize = compressedSize;
+		return new EntryOutputStream();
+	}
+
+	private void endEntry() throws IOException {
+		if (entryStart == -1) return;
+		long written = output.written - entryStart;
+		entryStart = -1;
+		if (written != entryCompressedSize) throw new IOException("Expected " + entryCompressedSize + " bytes of compressed data, but " + written + " bytes were written");
+	}
+
+	public void writeEntryData(ByteBuffer data) throws IOException {
+		if (entryStart == -1) throw new IOException("No entry is being written");
+
+		if (data.hasArray()) {
+			output.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+		} else {
+			WritableByteChannel channel = Channels.newChannel(output);
+			ByteBuffer remaining = data.duplicate();
+			while (remaining.hasRemaining()) channel.write(remaining);
+		}
+	}
+
+	public void transferEntryData(FileChannel source, long position, long count) throws IOException {
+		if (entryStart == -1) throw new IOException("No entry is being written");
+		output.flush();
+		WritableByteChannel target = output.output instanceof FileOutputStream fileOutput? fileOutput.getChannel() : Channels.newChannel(output.output);
+		long transferred = 0;
+
+		while (transferred < count) {
+			long n = source.transferTo(position + transferred, count - transferred, target);
+			if (n <= 0) throw new IOException("Expected " + count + " bytes from source, but only " + transferred + " bytes were transferred");
+			transferred += n;
+		}
+
+		output.written += transferred;
+	}
+
+	public void finish() throws IOException {
+		if (finished) return;
+		endEntry();
+		finished = true;
+
+		long offset = output.written;
+		long size = centralDirectory.size();
+		centralDirectory.writeTo(output);
+		boolean zip64 = entries >= MAX_ENTRIES || offset >= MAX_32 || size >= MAX_32;
+
+		if (zip64) {
+			long zip64End = output.written;
+			ByteBuffer end64 = ByteBuffer.allocate(56 + 20).order(ByteOrder.LITTLE_ENDIAN);
+			end64.putInt(ZIP64_END_OF_CENTRAL_DIRECTORY);
+			end64.putLong(44); // Size of remaining record
+			end64.putShort((short) VERSION_ZIP64);
+			end64.putShort((short) VERSION_ZIP64);
+			end64.putInt(0); // This disk
+			end64.putInt(0); // Disk with central directory
+			end64.putLong(entries);
+			end64.putLong(entries);
+			end64.putLong(size);
+			end64.putLong(offset);
+
+			end64.putInt(ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR);
+			end64.putInt(0); // Disk with Zip64 end of central directory
+			end64.putLong(zip64End);
+			end64.putInt(1); // Number of disks
+			output.write(end64.array());
+		}
+
+		ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+		end.putInt(END_OF_CENTRAL_DIRECTORY);
+		end.putShort((short) 0); // This disk
+		end.putShort((short) 0); // Disk with central directory
+		end.putShort((short) Math.min(entries, MAX_ENTRIES));
+		end.putShort((short) Math.min(entries, MAX_ENTRIES));
+		end.putInt((int) Math.min(size, MAX_32));
+		end.putInt((int) Math.min(offset, MAX_32));
+		end.putShort((short) 0); // Comment length
+		output.write(end.array());
+		output.flush();
+	}
+
+	public int getEntriesCount() {
+		return entries;
+	}
+
+	public long getBytesWritten() {
+		return output.written;
+	}
+
+	private static long toDosTime(long millis) {
+		LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+		if (time.getYear() < 1980) return (1 << 21) | (1 << 16);
+
+		return ((long) (time.getYear() - 1980) << 25)
+				| (time.getMonthValue() << 21)
+				| (time.getDayOfMonth() << 16)
+				| (time.getHour() << 11)
+				| (time.getMinute() << 5)
+				| (time.getSecond() >> 1);
+	}
+
+	private class EntryOutputStream extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			output.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			output.write(b, off, len);
+		}
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		private final OutputStream output;
+		private long written = 0;
+
+		public CountingOutputStream(OutputStream output) {
+			this.output = output;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			output.write(b);
+			written++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			output.write(b, off, len);
+			written += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			output.flush();
+		}
+	}
+}
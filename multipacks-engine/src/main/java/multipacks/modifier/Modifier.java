@@ -66,6 +66,13 @@ public abstract class Modifier<C, X> {
 		// NO-OP
 	}
 
+	/**
+	 * Stateless modifiers only depend on files they read from bundle contents, so each invocation can be cached.
+	 */
+	public boolean isStateless() {
+		return false;
+	}
+
 	@SuppressWarnings("unchecked")
 	public static void applyModifiers(BundleContext context, JsonArray list) {
 		for (JsonElement e : list) {
@@ -73,11 +80,14 @@ public abstract class Modifier<C, X> {
 			ResourcePath id = new ResourcePath(Selects.nonNull(obj.get(FIELD_ID), Messages.missingFieldAny(FIELD_ID)).getAsString());
 			JsonElement config = obj.get(FIELD_CONFIG);
 
+			context.checkCancelled();
 			Modifier<?, ?> modifier = context.getOrCreateModifier(id);
 			if (modifier == null) throw new NullPointerException("Modifier with type id = " + id + " not found!");
 			Object modContext = modifier.createContext();
 
+			context.getListener().onModifierStarted(context.pack, id);
 			walkModifierConfigs(context, (Modifier<Object, Object>) modifier, modContext, Path.ROOT, config);
+			context.getListener().onModifierFinished(context.pack, id);
 		}
 	}
 
@@ -102,6 +112,7 @@ public abstract class Modifier<C, X> {
 					throw new RuntimeException("An error occured while including " + next, e);
 				}
 			} else {
+				context.checkCancelled();
 				mod.applyModifier(context, cwd, mod.configure(obj), modContext);
 			}
 		}
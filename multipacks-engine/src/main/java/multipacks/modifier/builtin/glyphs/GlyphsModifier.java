@@ -18,8 +18,6 @@ package multipacks.modifier.builtin.glyphs;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -126,15 +124,7 @@ public class GlyphsModifier extends Modifier<multipacks.modifier.builtin.glyphs.
 			// TODO: remap bitmap file to somewhere...
 			// assets/<namespace>/textures/font/multipacks_<ID>.png
 			// <namespace>:font/multipacks_<ID>.png
-			Vfs bitmapDest = context.content.mkdir("assets").mkdir(config.id.namespace).mkdir("textures").mkdir("font").touch("multipacks_" + config.id.path + ".png");
-			try (InputStream in = bitmapFile.getInputStream()) {
-				try (OutputStream out = bitmapDest.getOutputStream()) {
-					in.transferTo(out);
-				}
-			} catch (IOException e) {
-				throw new RuntimeException("Failed to copy from " + bitmapFile + " to " + bitmapDest, e);
-			}
-
+			context.content.mkdir("assets").mkdir(config.id.namespace).mkdir("textures").mkdir("font").graft("multipacks_" + config.id.path + ".png", bitmapFile);
 			bitmapFile.getParent().delete(bitmapFile.getName());
 
 			Holder<FontInfo> fontPtr = new Holder<>(null);
@@ -20,6 +20,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
@@ -72,8 +73,13 @@ public class BaseItemModel {
 	}
 
 	public TrimModelOverride allocateTrim(ResourcePath model, ResourcePath namedOverride) {
+		// Seeded from item and model, so the same pack always allocates the same trim types
+		Random random = new Random(((long) itemId.toString().hashCode() << 32) ^ model.toString().hashCode());
 		double val;
-		do { val = Math.random(); } while (occupiedTrims.contains(val));
+		do { val = random.nextDouble(); } while (occupiedTrims.contains(val));
+
+		// Same model might be allocated again for this item, which would otherwise get the same trim type
+		occupiedTrims.add(val);
 		TrimModelOverride out = new TrimModelOverride(this, model, val);
 
 		overrides.add(out);
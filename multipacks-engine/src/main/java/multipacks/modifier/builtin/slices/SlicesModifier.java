@@ -104,6 +104,11 @@ public class SlicesModifier extends Modifier<multipacks.modifier.builtin.slices.
 	public void finalizeModifier(Vfs contents, ModifiersAccess access) {
 	}
 
+	@Override
+	public boolean isStateless() {
+		return true;
+	}
+
 	public static void registerTo(ModifiersAccess access) {
 		access.registerModifier(ID, SlicesModifier::new);
 	}
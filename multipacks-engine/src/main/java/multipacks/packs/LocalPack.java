@@ -24,6 +24,7 @@ import java.nio.file.Path;
 import com.google.gson.JsonArray;
 
 import multipacks.packs.meta.PackIndex;
+import multipacks.packs.meta.PackLock;
 import multipacks.utils.Messages;
 import multipacks.utils.io.IOUtils;
 import multipacks.vfs.Vfs;
@@ -39,6 +40,7 @@ public class LocalPack implements Pack {
 	public static final String FILE_INDEX_LEGACY = "multipacks.json";
 
 	public static final String FILE_MODIFIERS = "multipacks.modifiers.json";
+	public static final String FILE_LOCK = "multipacks.lock";
 
 	public final Path packRoot;
 	private PackIndex index;
@@ -86,6 +88,18 @@ public class LocalPack implements Pack {
 		return modifiers;
 	}
 
+	public PackLock loadLock() throws IOException {
+		Path lockFile = packRoot.resolve(FILE_LOCK);
+		if (!Files.exists(lockFile)) return new PackLock();
+		return new PackLock(IOUtils.jsonFromPath(lockFile).getAsJsonObject());
+	}
+
+	public void saveLock(PackLock lock) throws IOException {
+		if (!lock.isDirty()) return;
+		IOUtils.jsonToFile(lock.toJson(), packRoot.resolve(FILE_LOCK).toFile());
+		lock.markSaved();
+	}
+
 	@Override
 	public Vfs createVfs() {
 		Vfs vfs = Vfs.createRoot(packRoot);
@@ -50,6 +50,18 @@ public class PackIdentifier {
 		return json;
 	}
 
+	@Override
+	public int hashCode() {
+		// Versions with trailing zeros are equal (Eg: 1.0 and 1.0.0), so only the name is hashed
+		return name.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof PackIdentifier other)) return false;
+		return name.equals(other.name) && packVersion.compareTo(other.packVersion) == 0;
+	}
+
 	@Override
 	public String toString() {
 		return "PackIdentifier [name=" + name + ", packVersion=" + packVersion + "]";
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.packs.meta;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import multipacks.repository.query.PackQuery;
+import multipacks.utils.Messages;
+import multipacks.utils.Selects;
+import multipacks.versioning.Version;
+import multipacks.vfs.BlobStore;
+
+/**
+ * @author nahkd
+ *
+ */
+public class PackLock {
+	public static final String FIELD_PACKS = "packs";
+	public static final String FIELD_DEPENDENCIES_HASH = "dependenciesHash";
+	public static final String FIELD_ENTRIES = "entries";
+	public static final String FIELD_PACK = "pack";
+	public static final String FIELD_QUERY = "query";
+	public static final String FIELD_RESOLVED = "resolved";
+	public static final String FIELD_REPOSITORY = "repository";
+
+	private final Map<String, String> dependenciesHashes = new TreeMap<>();
+	private final Map<String, Entry> entries = new TreeMap<>();
+	private boolean dirty;
+
+	public PackLock() {
+	}
+
+	public PackLock(JsonObject json) {
+		if (json.has(FIELD_PACKS)) for (JsonElement e : json.get(FIELD_PACKS).getAsJsonArray()) {
+			JsonObject obj = e.getAsJsonObject();
+			PackIdentifier pack = new PackIdentifier(Selects.nonNull(obj.get(FIELD_PACK), Messages.missingFieldAny(FIELD_PACK)).getAsJsonObject());
+			String hash = Selects.nonNull(obj.get(FIELD_DEPENDENCIES_HASH), Messages.missingFieldAny(FIELD_DEPENDENCIES_HASH)).getAsString();
+			dependenciesHashes.put(getKey(pack), hash);
+		}
+
+		if (json.has(FIELD_ENTRIES)) for (JsonElement e : json.get(FIELD_ENTRIES).getAsJsonArray()) {
+			JsonObject obj = e.getAsJsonObject();
+			PackIdentifier pack = new PackIdentifier(Selects.nonNull(obj.get(FIELD_PACK), Messages.missingFieldAny(FIELD_PACK)).getAsJsonObject());
+			String query = Selects.nonNull(obj.get(FIELD_QUERY), Messages.missingFieldAny(FIELD_QUERY)).getAsString();
+			PackIdentifier resolved = new PackIdentifier(Selects.nonNull(obj.get(FIELD_RESOLVED), Messages.missingFieldAny(FIELD_RESOLVED)).getAsJsonObject());
+			String repository = Selects.nonNull(obj.get(FIELD_REPOSITORY), Messages.missingFieldAny(FIELD_REPOSITORY)).getAsString();
+			entries.put(getKey(pack, query), new Entry(pack, query, resolved, repository));
+		}
+	}
+
+	public synchronized JsonObject toJson() {
+		JsonObject json = new JsonObject();
+		JsonArray packs = new JsonArray();
+		for (Map.Entry<String, String> e : dependenciesHashes.entrySet()) {
+			JsonObject obj = new JsonObject();
+			obj.add(FIELD_PACK, parseKey(e.getKey()).toJson());
+			obj.addProperty(FIELD_DEPENDENCIES_HASH, e.getValue());
+			packs.add(obj);
+		}
+
+		json.add(FIELD_PACKS, packs);
+		JsonArray arr = new JsonArray();
+		for (Entry entry : entries.values()) {
+			JsonObject obj = new JsonObject();
+			obj.add(FIELD_PACK, entry.pack.toJson());
+			obj.addProperty(FIELD_QUERY, entry.query);
+			obj.add(FIELD_RESOLVED, entry.resolved.toJson());
+			obj.addProperty(FIELD_REPOSITORY, entry.repository);
+			arr.add(obj);
+		}
+
+		json.add(FIELD_ENTRIES, arr);
+		return json;
+	}
+
+	private static String getKey(PackIdentifier pack) {
+		return pack.name + " " + pack.packVersion.toStringNoPrefix();
+	}
+
+	private static PackIdentifier parseKey(String key) {
+		int space = key.lastIndexOf(' ');
+		return new PackIdentifier(key.substring(0, space), new Version(key.substring(space + 1)));
+	}
+
+	private static String getKey(PackIdentifier pack, String query) {
+		return getKey(pack) + ": " + query;
+	}
+
+	private static String hashDependencies(PackIndex index) {
+		StringBuilder str = new StringBuilder();
+		for (PackQuery query : index.dependencies) str.append(query).append('\n');
+		return BlobStore.hash(str.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Must be called for every pack in dependency graph.
+	 */
+	public synchronized boolean validate(PackIdentifier pack, PackIndex index) {
+		String hash = hashDependencies(index);
+		if (hash.equals(dependenciesHashes.put(getKey(pack), hash))) return true;
+
+		entries.values().removeIf(entry -> entry.pack.equals(pack));
+		dirty = true;
+		return false;
+	}
+
+	public synchronized void retain(Collection<PackIdentifier> packs) {
+		Set<String> keys = new HashSet<>();
+		for (PackIdentifier pack : packs) keys.add(getKey(pack));
+
+		boolean removed = dependenciesHashes.keySet().retainAll(keys);
+		removed |= entries.values().removeIf(entry -> !keys.contains(getKey(entry.pack)));
+		if (removed) dirty = true;
+	}
+
+	public synchronized Entry get(PackIdentifier pack, String query) {
+		return entries.get(getKey(pack, query));
+	}
+
+	public synchronized void put(PackIdentifier pack, String query, PackIdentifier resolved, String repository) {
+		Entry entry = new Entry(pack, query, resolved, repository);
+		Entry old = entries.put(getKey(pack, query), entry);
+		if (old == null || !old.resolved.equals(resolved) || !old.repository.equals(repository)) dirty = true;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized boolean isDirty() {
+		return dirty;
+	}
+
+	public synchronized void markSaved() {
+		dirty = false;
+	}
+
+	public static class Entry {
+		public final PackIdentifier pack;
+		public final String query;
+		public final PackIdentifier resolved;
+		public final String repository;
+
+		public Entry(PackIdentifier pack, String query, PackIdentifier resolved, String repository) {
+			this.pack = pack;
+			this.query = query;
+			this.resolved = resolved;
+			this.repository = repository;
+		}
+	}
+}
@@ -49,9 +49,15 @@ import multipacks.versioning.Version;
  */
 public class LocalRepository implements AuthorizedRepository {
 	public final Path repositoryRoot;
+	private final String id;
 
-	public LocalRepository(Path repositoryRoot) {
+	public LocalRepository(Path repositoryRoot, String id) {
 		this.repositoryRoot = repositoryRoot;
+		this.id = id;
+	}
+
+	public LocalRepository(Path repositoryRoot) {
+		this(repositoryRoot, "local " + repositoryRoot);
 	}
 
 	public static LocalRepository fromClassLoader(ClassLoader clsLoader, String pathToRepo) {
@@ -73,12 +79,12 @@ public class LocalRepository implements AuthorizedRepository {
 							}
 						}
 
-						return new LocalRepository(fs.getPath(pathToRepo));
+						return new LocalRepository(fs.getPath(pathToRepo), "classpath " + pathToRepo);
 					}
 				}
 			}
 
-			return new LocalRepository(Path.of(uri));
+			return new LocalRepository(Path.of(uri), "classpath " + pathToRepo);
 		} catch (URISyntaxException e) {
 			// It SHOULD NOT throw URISyntaxException
 			throw new RuntimeException(Messages.INTERNAL_ERROR, e);
@@ -179,6 +185,11 @@ public class LocalRepository implements AuthorizedRepository {
 		Files.delete(p);
 	}
 
+	@Override
+	public String getId() {
+		return id;
+	}
+
 	@Override
 	public String toString() {
 		return "local " + repositoryRoot;
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import multipacks.packs.meta.PackIdentifier;
+import multipacks.repository.query.PackQuery;
+import multipacks.utils.Messages;
+
+/**
+ * @author nahkd
+ *
+ */
+public class RepositoriesResolver {
+	public final Mode mode;
+	public final long timeoutMillis;
+	public final Executor executor;
+
+	public RepositoriesResolver(Mode mode, long timeoutMillis, Executor executor) {
+		this.mode = mode;
+		this.timeoutMillis = timeoutMillis;
+		this.executor = executor;
+	}
+
+	public CompletableFuture<Result> resolve(Collection<Repository> repositories, PackQuery query) {
+		List<Repository> repos = new ArrayList<>(repositories);
+		Race race = new Race(query, repos.size());
+		if (repos.size() == 0) race.decide();
+
+		for (int i = 0; i < repos.size(); i++) {
+			// Direct executors may decide the result before all lookups are started
+			if (race.isDecided()) break;
+			Repository repo = repos.get(i);
+			int priority = i;
+
+			CompletableFuture<Collection<PackIdentifier>> lookup = CompletableFuture.completedFuture(query).thenComposeAsync(q -> {
+				CompletableFuture<Collection<PackIdentifier>> search = repo.search(q);
+				race.track(search);
+				return search;
+			}, executor);
+
+			if (timeoutMillis >= 0) lookup = lookup.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+			race.track(lookup);
+			lookup.whenComplete((ids, e) -> race.answer(repo, priority, ids, e));
+		}
+
+		race.result.whenComplete((result, e) -> race.cancelAll());
+		return race.result;
+	}
+
+	private class Race {
+		final PackQuery query;
+		final CompletableFuture<Result> result = new CompletableFuture<>();
+		final List<CompletableFuture<?>> pending = new ArrayList<>();
+		final Result[] hits;
+		final boolean[] answered;
+		int remaining;
+		boolean decided;
+		Result best;
+		Throwable error;
+
+		Race(PackQuery query, int repositories) {
+			this.query = query;
+			this.remaining = repositories;
+			this.hits = new Result[repositories];
+			this.answered = new boolean[repositories];
+		}
+
+		void answer(Repository repo, int priority, Collection<PackIdentifier> ids, Throwable e) {
+			synchronized (this) {
+				if (decided) return;
+				collect(repo, priority, ids, e);
+				answered[priority] = true;
+				remaining--;
+				if (!isFirstHitDecided() && remaining > 0) return;
+				decided = true;
+				if (mode == Mode.HIGHEST_VERSION) best = highestVersion();
+			}
+
+			complete();
+		}
+
+		private boolean isFirstHitDecided() {
+			if (mode != Mode.FIRST_HIT) return false;
+
+			// Earlier repositories always wins, so the result does not depend on timing; only later repositories are
+			// not waited for
+
+			for (int i = 0; i < hits.length; i++) {
+				if (!answered[i]) return false;
+
+				if (hits[i] != null) {
+					best = hits[i];
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		private Result highestVersion() {
+			Result highest = null;
+
+			// Earlier repositories wins on ties
+			for (Result hit : hits) {
+				if (hit != null && (highest == null || hit.id.packVersion.compareTo(highest.id.packVersion) > 0)) highest = hit;
+			}
+
+			return highest;
+		}
+
+		private void collect(Repository repo, int priority, Collection<PackIdentifier> ids, Throwable e) {
+			if (e == null) {
+				for (PackIdentifier id : ids) {
+					if (hits[priority] == null || id.packVersion.compareTo(hits[priority].id.packVersion) > 0) hits[priority] = new Result(repo, id);
+				}
+			} else {
+				Throwable cause = e instanceof CompletionException? e.getCause() : e;
+				if (!(cause instanceof TimeoutException) && !(cause instanceof CancellationException) && error == null) error = cause;
+			}
+		}
+
+		synchronized boolean isDecided() {
+			return decided;
+		}
+
+		void decide() {
+			synchronized (this) { decided = true; }
+			complete();
+		}
+
+		private void complete() {
+			if (best != null) result.complete(best);
+			else if (error != null) result.completeExceptionally(error);
+			else result.completeExceptionally(new RuntimeException(Messages.cantResolveDependency(query)));
+		}
+
+		synchronized void track(CompletableFuture<?> future) {
+			if (decided) future.cancel(true);
+			else pending.add(future);
+		}
+
+		synchronized void cancelAll() {
+			for (CompletableFuture<?> future : pending) future.cancel(true);
+			pending.clear();
+		}
+	}
+
+	public static class Result {
+		public final Repository repository;
+		public final PackIdentifier id;
+
+		public Result(Repository repository, PackIdentifier id) {
+			this.repository = repository;
+			this.id = id;
+		}
+	}
+
+	public static enum Mode {
+		HIGHEST_VERSION,
+		FIRST_HIT;
+	}
+}
@@ -69,6 +69,13 @@ public interface Repository {
 	 */
 	CompletableFuture<AuthorizedRepository> login(String username, byte[] secret);
 
+	/**
+	 * Get the identifier of this repository, which must stay the same between runs and machines.
+	 */
+	default String getId() {
+		return getClass().getName();
+	}
+
 	static Repository fromConnectionString(String str, Path cwd) {
 		String[] split = str.split(" ", 2);
 		String type = split[0];
@@ -77,7 +84,8 @@ public interface Repository {
 		switch (type) {
 		case "local":
 			if (cwd == null) throw new NullPointerException("CWD is not supplied to this method");
-			return new LocalRepository(cwd.resolve(connectTo));
+			// Resolved path depends on where the config is, but the connection string does not
+			return new LocalRepository(cwd.resolve(connectTo), str);
 		default: throw new IllegalArgumentException("Unknown repository type: " + type);
 		}
 	}
@@ -80,6 +80,11 @@ public class SimpleRepository implements Repository {
 		return CompletableFuture.failedFuture(new RuntimeException("SimpleRepository does not allows logging in; You can't upload or delete packs from this repository."));
 	}
 
+	@Override
+	public String getId() {
+		return "simple " + displayName;
+	}
+
 	@Override
 	public String toString() {
 		return "external repository " + displayName;
@@ -15,6 +15,8 @@
  */
 package multipacks.utils;
 
+import java.util.List;
+
 import multipacks.packs.meta.PackIdentifier;
 import multipacks.repository.query.PackQuery;
 
@@ -50,6 +52,14 @@ public class Messages {
 		return "Failed to find dependency with query: " + query;
 	}
 
+	public static String dependencyCycle(List<PackIdentifier> cycle) {
+		String msg = "Dependency cycle detected: ";
+		for (int i = 0; i < cycle.size(); i++) msg += (i > 0? " -> " : "") + cycle.get(i).name + " version " + cycle.get(i).packVersion.toStringNoPrefix();
+		return msg;
+	}
+
+	public static final String BUNDLE_CANCELLED = "Bundling was cancelled";
+
 	public static String missingFile(Object fileHandle) {
 		return "File not found: " + fileHandle;
 	}
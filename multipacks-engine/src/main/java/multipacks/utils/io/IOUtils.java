@@ -23,6 +23,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.CopyOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -38,7 +39,7 @@ import multipacks.vfs.Vfs;
 public class IOUtils {
 	public static JsonElement jsonFromStream(InputStream stream) throws IOException {
 		JsonParser parser = new JsonParser();
-		JsonElement json = parser.parse(new InputStreamReader(stream));
+		JsonElement json = parser.parse(new InputStreamReader(stream, StandardCharsets.UTF_8));
 		return json;
 	}
 
@@ -61,7 +62,7 @@ public class IOUtils {
 	}
 
 	public static void jsonToStream(JsonElement json, OutputStream stream) throws IOException {
-		OutputStreamWriter sw = new OutputStreamWriter(stream);
+		OutputStreamWriter sw = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
 		JsonWriter writer = new JsonWriter(sw);
 		writer.setIndent("    ");
 		new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create().toJson(json, writer);
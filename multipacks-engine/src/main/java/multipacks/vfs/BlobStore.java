@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.vfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import multipacks.utils.Messages;
+
+/**
+ * @author nahkd
+ *
+ */
+public class BlobStore implements Closeable {
+	public static final String HASH_ALGORITHM = "SHA-1";
+	public static final long UNLIMITED = Long.MAX_VALUE;
+
+	private static final Cleaner CLEANER = Cleaner.create();
+
+	private final Map<String, EntryRef> blobs = new ConcurrentHashMap<>();
+	private final ReferenceQueue<Entry> unused = new ReferenceQueue<>();
+	private final AtomicLong storedBytes = new AtomicLong();
+
+	private final long memoryBudget;
+	private final java.nio.file.Path spillDirectory;
+	private final LinkedHashMap<EntryRef, EntryRef> inMemory = new LinkedHashMap<>(16, 0.75f, true);
+	private long inMemoryBytes = 0;
+	private final SpillArena arena = new SpillArena();
+	private final Cleaner.Cleanable cleanable;
+
+	public BlobStore(long memoryBudget, java.nio.file.Path spillDirectory) {
+		if (memoryBudget < 0) throw new IllegalArgumentException("Memory budget must not be negative");
+		this.memoryBudget = memoryBudget;
+		this.spillDirectory = spillDirectory;
+		this.cleanable = CLEANER.register(this, arena);
+	}
+
+	public BlobStore(long memoryBudget) {
+		this(memoryBudget, null);
+	}
+
+	public BlobStore() {
+		this(UNLIMITED);
+	}
+
+	public Entry store(byte[] data) {
+		expunge();
+		Entry[] stored = new Entry[1];
+
+		blobs.compute(hash(data), (key, ref) -> {
+			stored[0] = ref != null? ref.get() : null;
+			if (stored[0] != null) return ref;
+
+			storedBytes.addAndGet(data.length);
+			stored[0] = new Entry(this, key, data);
+			return stored[0].ref;
+		});
+
+		Entry entry = stored[0];
+		if (memoryBudget == UNLIMITED) return entry;
+		List<Entry> spilling;
+
+		synchronized (this) {
+			if (entry.data == null) return entry;
+			if (inMemory.put(entry.ref, entry.ref) == null) inMemoryBytes += entry.length;
+			spilling = evict();
+		}
+
+		spill(spilling);
+		return entry;
+	}
+
+	public Entry get(String hash) {
+		EntryRef ref = blobs.get(hash);
+		return ref != null? ref.get() : null;
+	}
+
+	public int getBlobsCount() {
+		expunge();
+		return blobs.size();
+	}
+
+	private void expunge() {
+		Reference<? extends Entry> polled;
+
+		while ((polled = unused.poll()) != null) {
+			EntryRef ref = (EntryRef) polled;
+			blobs.remove(ref.hash, ref);
+			storedBytes.addAndGet(-ref.length);
+			if (memoryBudget == UNLIMITED) continue;
+
+			synchronized (this) {
+				if (inMemory.remove(ref) != null) inMemoryBytes -= ref.length;
+			}
+
+			if (ref.spillOffset >= 0) arena.free(ref.spillOffset, ref.length);
+		}
+	}
+
+	public long getStoredBytes() {
+		expunge();
+		return storedBytes.get();
+	}
+
+	public long getInMemoryBytes() {
+		if (memoryBudget == UNLIMITED) return getStoredBytes();
+
+		synchronized (this) {
+			return inMemoryBytes;
+		}
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	private byte[] load(Entry entry) {
+		// Nothing is spilled without a budget, so there is no need to track recently used entries
+		if (memoryBudget == UNLIMITED) return entry.data;
+		long spillOffset;
+
+		synchronized (this) {
+			byte[] data = entry.data;
+
+			if (data != null) {
+				inMemory.get(entry.ref);
+				return data;
+			}
+
+			spillOffset = entry.ref.spillOffset;
+		}
+
+		// Spilled contents are never moved while the entry is still referenced, so it can be read without locking
+		byte[] data;
+
+		try {
+			data = arena.read(spillOffset, entry.length);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to load spilled content " + entry.hash, e);
+		}
+
+		List<Entry> spilling;
+
+		synchronized (this) {
+			if (entry.data != null) return entry.data;
+			entry.data = data;
+			inMemory.put(entry.ref, entry.ref);
+			inMemoryBytes += entry.length;
+			spilling = evict();
+		}
+
+		spill(spilling);
+		return data;
+	}
+
+	private List<Entry> evict() {
+		Iterator<EntryRef> iter = inMemory.keySet().iterator();
+		List<Entry> spilling = new ArrayList<>();
+
+		// Always keep the most recently used entry in memory
+		while (inMemoryBytes > memoryBudget && inMemory.size() > 1) {
+			EntryRef ref = iter.next();
+			iter.remove();
+			inMemoryBytes -= ref.length;
+
+			// Unused contents are dropped instead of being spilled
+			Entry eldest = ref.get();
+			if (eldest == null) continue;
+
+			// Contents are immutable, so spilled entries only have to be written once
+			if (ref.spillOffset >= 0) eldest.data = null;
+			else spilling.add(eldest);
+		}
+
+		return spilling;
+	}
+
+	private void spill(List<Entry> spilling) {
+		for (Entry entry : spilling) {
+			byte[] data = entry.data;
+			if (data == null) continue;
+			long spillOffset;
+
+			try {
+				spillOffset = arena.write(data, spillDirectory);
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to spill content " + entry.hash, e);
+			}
+
+			synchronized (this) {
+				// Entry might be evicted again while it was being spilled
+				if (entry.ref.spillOffset >= 0) arena.free(spillOffset, entry.length);
+				else entry.ref.spillOffset = spillOffset;
+
+				// Entry might be used again while it was being spilled
+				if (!inMemory.containsKey(entry.ref)) entry.data = null;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		cleanable.clean();
+	}
+
+	public static String hash(byte[] data) {
+		return hash(ByteBuffer.wrap(data));
+	}
+
+	public static String hash(ByteBuffer data) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+			digest.update(data.duplicate());
+			return HexFormat.of().formatHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform must support SHA-1
+			throw new RuntimeException(Messages.INTERNAL_ERROR, e);
+		}
+	}
+
+	public static class Entry {
+		private final BlobStore store;
+		private final EntryRef ref;
+		public final String hash;
+		public final int length;
+		private volatile byte[] data;
+
+		private Entry(BlobStore store, String hash, byte[] data) {
+			this.store = store;
+			this.hash = hash;
+			this.length = data.length;
+			this.data = data;
+			this.ref = new EntryRef(this, store.unused);
+		}
+
+		/**
+		 * The returned array must not be modified.
+		 */
+		public byte[] getData() {
+			return store.load(this);
+		}
+
+		public BlobStore getStore() {
+			return store;
+		}
+
+		@Override
+		public String toString() {
+			return "BlobStore.Entry(" + hash + ", size = " + length + ")";
+		}
+	}
+
+	private static class EntryRef extends WeakReference<Entry> {
+		final String hash;
+		final int length;
+		volatile long spillOffset = -1;
+
+		EntryRef(Entry entry, ReferenceQueue<Entry> queue) {
+			super(entry, queue);
+			this.hash = entry.hash;
+			this.length = entry.length;
+		}
+	}
+
+	private static class SpillArena implements Runnable {
+		private java.nio.file.Path path;
+		private volatile FileChannel channel;
+		private long size;
+		private boolean closed;
+		private final TreeMap<Long, Long> free = new TreeMap<>();
+
+		synchronized long write(byte[] data, java.nio.file.Path directory) throws IOException {
+			if (closed) throw new IOException("Blob store is already closed");
+
+			if (channel == null) {
+				path = directory != null? Files.createTempFile(directory, "multipacks-blobs", ".bin") : Files.createTempFile("multipacks-blobs", ".bin");
+				channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			}
+
+			long offset = allocate(data.length);
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			while (buffer.hasRemaining()) channel.write(buffer, offset + buffer.position());
+			return offset;
+		}
+
+		private long allocate(long length) {
+			for (Map.Entry<Long, Long> region : free.entrySet()) {
+				if (region.getValue() < length) continue;
+				free.remove(region.getKey());
+				if (region.getValue() > length) free.put(region.getKey() + length, region.getValue() - length);
+				return region.getKey();
+			}
+
+			long offset = size;
+			size += length;
+			return offset;
+		}
+
+		synchronized void free(long offset, long length) {
+			if (closed || length == 0) return;
+
+			// Merge with adjacent free regions, so larger contents can reuse them
+			Map.Entry<Long, Long> before = free.floorEntry(offset);
+			if (before != null && before.getKey() + before.getValue() == offset) {
+				free.remove(before.getKey());
+				offset = before.getKey();
+				length += before.getValue();
+			}
+
+			Long after = free.remove(offset + length);
+			if (after != null) length += after;
+
+			if (offset + length == size) size = offset;
+			else free.put(offset, length);
+		}
+
+		byte[] read(long offset, int length) throws IOException {
+			FileChannel channel = this.channel;
+			if (channel == null) throw new IOException("Blob store is already closed");
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, offset + buffer.position()) < 0) throw new IOException("Unexpected end of spill file");
+			}
+
+			return buffer.array();
+		}
+
+		@Override
+		public synchronized void run() {
+			try {
+				if (channel != null) channel.close();
+				if (path != null) Files.deleteIfExists(path);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			channel = null;
+			path = null;
+			closed = true;
+			free.clear();
+		}
+	}
+}
@@ -19,7 +19,6 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Stream;
 
 import multipacks.utils.ResourcePath;
 
@@ -30,9 +29,20 @@ import multipacks.utils.ResourcePath;
  *
  */
 public class Path {
-	public static final Path ROOT = new Path("");
+	public static final Path ROOT = new Path(new String[0], true);
+
+	private static final boolean[] ALLOWED_CHARS = new boolean[128];
+
+	static {
+		for (char c = 'A'; c <= 'Z'; c++) ALLOWED_CHARS[c] = true;
+		for (char c = 'a'; c <= 'z'; c++) ALLOWED_CHARS[c] = true;
+		for (char c = '0'; c <= '9'; c++) ALLOWED_CHARS[c] = true;
+		for (char c : "-_. ".toCharArray()) ALLOWED_CHARS[c] = true;
+	}
 
 	private String[] segments;
+	private int hash;
+	private String string;
 
 	/**
 	 * Construct a new path from a single string. This string may contains forward slashes ("/") as separators.
@@ -46,18 +56,31 @@ public class Path {
 	 * inserted between each segments.
 	 */
 	public Path(String... segments) {
-		List<String> stack = new ArrayList<>();
+		List<String> stack = new ArrayList<>(segments.length);
 		for (String s : segments) {
 			if (s.equals(".") || s.length() == 0) continue;
 			else if (s.equals("..")) {
 				if (stack.size() == 0 || stack.get(stack.size() - 1).equals("..")) stack.add("..");
 				else stack.remove(stack.size() - 1);
-			} else if (s.matches("[A-Za-z0-9\\-_\\. ]+")) stack.add(s);
+			} else if (isValidSegment(s)) stack.add(s);
 			else throw new IllegalArgumentException("Illegal path segment name: '" + s + "' (Must matches \"[A-Za-z0-9\\\\-_ ]+\")");
 		}
 		this.segments = stack.toArray(String[]::new);
 	}
 
+	private Path(String[] segments, boolean normalized) {
+		this.segments = segments;
+	}
+
+	private static boolean isValidSegment(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= ALLOWED_CHARS.length || !ALLOWED_CHARS[c]) return false;
+		}
+
+		return true;
+	}
+
 	/**
 	 * Return true if this path object accesses parent directory (using ".."). Primarily used to prevent path
 	 * traversal.
@@ -67,7 +90,13 @@ public class Path {
 	}
 
 	public Path parent() {
-		return Path.join(this, new Path(".."));
+		if (segments.length == 0 || segments[segments.length - 1].equals("..")) {
+			String[] out = Arrays.copyOf(segments, segments.length + 1);
+			out[segments.length] = "..";
+			return new Path(out, true);
+		}
+
+		return new Path(Arrays.copyOf(segments, segments.length - 1), true);
 	}
 
 	public String fileName() {
@@ -78,7 +107,20 @@ public class Path {
 	 * Join this path with another path.
 	 */
 	public Path join(Path p) {
-		return new Path(toString() + "/" + p.toString());
+		if (p.segments.length == 0) return this;
+		if (segments.length == 0) return p;
+
+		// Both paths are normalized, so ".." can only appears at the beginning of the other path
+		int keep = segments.length, skip = 0;
+		while (skip < p.segments.length && p.segments[skip].equals("..") && keep > 0 && !segments[keep - 1].equals("..")) {
+			keep--;
+			skip++;
+		}
+
+		String[] out = new String[keep + p.segments.length - skip];
+		System.arraycopy(segments, 0, out, 0, keep);
+		System.arraycopy(p.segments, skip, out, keep, p.segments.length - skip);
+		return new Path(out, true);
 	}
 
 	/**
@@ -103,7 +145,8 @@ public class Path {
 	 */
 	@Override
 	public String toString() {
-		return String.join("/", segments);
+		if (string == null) string = String.join("/", segments);
+		return string;
 	}
 
 	public File joinWith(File root) {
@@ -115,10 +158,9 @@ public class Path {
 		if (isAccessingParent()) return null;
 		if (segments.length < 3) return new ResourcePath("minecraft", toString());
 		String namespace = segments[1];
-		Path shifted = new Path(segments[0], segments[1]);
-		while (shifted.segments.length < shifts) shifted = shifted.join(segments[shifted.segments.length]);
+		int keyStart = Math.max(shifts, 2);
 
-		String key = toString().substring(shifted.toString().length() + 1);
+		String key = String.join("/", Arrays.copyOfRange(segments, keyStart, segments.length));
 		return new ResourcePath(namespace, key);
 	}
 
@@ -130,19 +172,25 @@ public class Path {
 
 	@Override
 	public int hashCode() {
-		return 7 + 13 * this.toString().hashCode();
+		if (hash == 0) hash = 7 + 13 * Arrays.hashCode(segments);
+		return hash;
 	}
 
 	@Override
 	public boolean equals(Object obj) {
-		return obj != null && obj instanceof Path p && Arrays.equals(segments, p.segments);
+		if (obj == this) return true;
+		return obj != null && obj instanceof Path p && hashCode() == p.hashCode() && Arrays.equals(segments, p.segments);
 	}
 
 	public static Path join(Path... p) {
-		return new Path(String.join("/", Stream.of(p).map(v -> v.toString()).toArray(String[]::new)));
+		Path out = ROOT;
+		for (Path path : p) out = out.join(path);
+		return out;
 	}
 
 	public static Path join(String... p) {
-		return new Path(String.join("/", Stream.of(p).map(v -> new Path(v).toString()).toArray(String[]::new)));
+		Path out = ROOT;
+		for (String path : p) out = out.join(path);
+		return out;
 	}
 }
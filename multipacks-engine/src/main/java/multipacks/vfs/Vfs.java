@@ -20,12 +20,22 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import multipacks.utils.Messages;
 
@@ -34,93 +44,159 @@ import multipacks.utils.Messages;
  *
  */
 public class Vfs {
-	private Vfs parent;
-	private String name;
-	protected java.nio.file.Path nativePath;
-	protected byte[] content;
-	private HashMap<String, Vfs> directoryContent;
-	private HashSet<String> removedChildren;
-
-	protected Vfs(Vfs parent, String name) {
+	public static final long MAPPING_THRESHOLD = 1024 * 1024;
+
+	private final Vfs root;
+	private final Vfs parent;
+	private final String name;
+	private volatile VfsNode node;
+
+	// Guarded by this handle
+	private HashMap<String, Vfs> handles;
+	private Vfs[] listing;
+
+	private BlobStore blobs;
+	private volatile VfsJournal journal;
+
+	protected Vfs(Vfs parent, String name, VfsNode node) {
+		this.root = parent != null? parent.root : this;
 		this.parent = parent;
 		this.name = name;
+		this.node = node;
+		if (node.isDir()) handles = new HashMap<>();
 	}
 
-	public static Vfs createRoot(java.nio.file.Path root) {
+	public static Vfs createRoot(java.nio.file.Path root, BlobStore blobs) {
 		if (!Files.isDirectory(root)) throw new IllegalArgumentException("Native path is not a directory");
 
-		Vfs vfs = new Vfs(null, null);
-		vfs.nativePath = root;
-		return vfs.initAsDir();
+		Vfs vfs = new Vfs(null, null, VfsNode.createDir(root));
+		vfs.blobs = blobs;
+		return vfs;
+	}
+
+	public static Vfs createRoot(java.nio.file.Path root) {
+		return createRoot(root, new BlobStore());
 	}
 
 	public static Vfs createRoot(File root) {
 		return createRoot(root.toPath());
 	}
 
-	public static Vfs createVirtualRoot() {
-		return new Vfs(null, null).initAsDir();
+	public static Vfs createVirtualRoot(BlobStore blobs) {
+		Vfs vfs = new Vfs(null, null, VfsNode.createDir(null));
+		vfs.blobs = blobs;
+		return vfs;
 	}
 
-	private Vfs initAsDir() {
-		directoryContent = new HashMap<>();
-		removedChildren = new HashSet<>();
-		return this;
+	public static Vfs createVirtualRoot() {
+		return createVirtualRoot(new BlobStore());
 	}
 
 	public Vfs getRoot() {
-		if (parent == null) return this;
-		return parent.getRoot();
+		return root;
 	}
 
-	public Vfs[] listFiles() {
-		if (directoryContent == null) throw new IllegalArgumentException(Messages.FILE_ISNOTDIR);
-		List<Vfs> files = new ArrayList<>();
+	public BlobStore getBlobStore() {
+		return getRoot().blobs;
+	}
 
-		if (nativePath != null) {
-			try {
-				for (java.nio.file.Path child : Files.list(nativePath).toList()) {
-					String childName = child.getFileName().toString();
-					if (removedChildren.contains(childName)) continue;
-					if (directoryContent.containsKey(childName)) continue;
-					files.add(initChildFile(child));
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+	public void setJournal(VfsJournal journal) {
+		getRoot().journal = journal;
+	}
+
+	public VfsJournal getJournal() {
+		return getRoot().journal;
+	}
+
+	private void record(VfsJournal.Operation operation, String name) {
+		VfsStats.addFilesTouched();
+		VfsJournal journal = getJournal();
+		if (journal == null) return;
+
+		Path path = getPathFromRoot();
+		journal.record(operation, name != null? path.join(name) : path);
+	}
+
+	private void recordRead(VfsJournal.Operation operation, String name) {
+		VfsJournal journal = getJournal();
+		if (journal == null || !journal.isTrackingReads()) return;
+
+		Path path = getPathFromRoot();
+		journal.record(operation, name != null? path.join(name) : path);
+	}
+
+	public synchronized Vfs[] listFiles() {
+		if (!node.isDir()) throw new IllegalArgumentException(Messages.FILE_ISNOTDIR);
+		recordRead(VfsJournal.Operation.LIST, null);
+
+		if (listing == null) {
+			node.listNative();
+			// Children map may grow while iterating when other tree caches native children to the same shared node
+			List<Vfs> files = new ArrayList<>(node.children.size());
+			for (Map.Entry<String, VfsNode> e : node.children.entrySet()) files.add(getHandle(e.getKey(), e.getValue()));
+			listing = files.toArray(Vfs[]::new);
 		}
 
-		for (Vfs child : directoryContent.values()) {
-			if (files.contains(child)) continue;
-			files.add(child);
+		return listing.clone();
+	}
+
+	private Vfs getHandle(String name, VfsNode child) {
+		Vfs handle = handles.get(name);
+
+		if (handle == null || handle.node != child) {
+			handle = new Vfs(this, name, child);
+			handles.put(name, handle);
 		}
 
-		return files.toArray(Vfs[]::new);
+		return handle;
 	}
 
-	private Vfs initChildFile(java.nio.file.Path child) {
-		Vfs f = new Vfs(this, child.getFileName().toString());
-		f.nativePath = child;
-		if (Files.isDirectory(child)) f.initAsDir();
-		directoryContent.put(child.getFileName().toString(), f);
-		return f;
+	private void modify(Runnable modification) {
+		if (parent == null) {
+			if (node.shared) node = node.copy();
+			modification.run();
+			return;
+		}
+
+		synchronized (parent) {
+			parent.modify(() -> {
+				if (node.shared) replaceNode(node.copy());
+				modification.run();
+			});
+		}
 	}
 
-	public Vfs get(String name) {
+	private void replaceNode(VfsNode newNode) {
+		VfsNode old = node;
+		node = newNode;
+
+		// Deleted handles are detached from the tree and will not replace the new file with the same name
+		if (parent != null) parent.node.children.replace(name, old, newNode);
+	}
+
+	public synchronized Vfs get(String name) {
 		if (name.equals(".")) return this;
 		if (name.equals("..")) return parent != null? parent : this;
 
-		if (directoryContent == null) throw new IllegalArgumentException(Messages.FILE_ISNOTDIR);
+		if (!node.isDir()) throw new IllegalArgumentException(Messages.FILE_ISNOTDIR);
+		recordRead(VfsJournal.Operation.LOOKUP, name);
+
+		if (node.removedChildren.contains(name)) return null;
+		VfsNode child = node.children.get(name);
+
+		if (child == null) {
+			if (node.nativePath == null || node.nativeListed) return null;
 
-		if (removedChildren.contains(name)) return null;
-		Vfs child = directoryContent.get(name);
-		if (child != null) return child;
-		if (nativePath == null) return null;
+			java.nio.file.Path physicalChild = node.nativePath.resolve(name);
+			if (!Files.exists(physicalChild)) return null;
+
+			// Native children are cached in the node, even when it is shared, because it does not change the
+			// content of the node
+			VfsNode existing = node.children.putIfAbsent(name, child = VfsNode.fromNative(physicalChild));
+			if (existing != null) child = existing;
+		}
 
-		// File physicalChild = new File(attachedFile, name);
-		java.nio.file.Path physicalChild = nativePath.resolve(name);
-		if (Files.exists(physicalChild)) return initChildFile(physicalChild);
-		return null;
+		return getHandle(name, child);
 	}
 
 	public Vfs get(Path path) {
@@ -139,48 +215,54 @@ public class Vfs {
 	}
 
 	public boolean isDir() {
-		return directoryContent != null;
+		return node.isDir();
 	}
 
 	public Path getPathFromRoot() {
 		if (this.parent == null) return Path.ROOT;
-		return this.parent.getPathFromRoot().join(name);
+
+		int depth = 0;
+		for (Vfs f = this; f.parent != null; f = f.parent) depth++;
+
+		String[] segments = new String[depth];
+		for (Vfs f = this; f.parent != null; f = f.parent) segments[--depth] = f.name;
+		return new Path(segments);
 	}
 
 	public Vfs getParent() {
 		return parent;
 	}
 
-	public boolean delete(String name) {
-		if (removedChildren.contains(name)) return false;
-		directoryContent.remove(name);
-		removedChildren.add(name);
+	public synchronized boolean delete(String name) {
+		if (node.removedChildren.contains(name)) return false;
+		if (getJournal() != null && get(name) != null) record(VfsJournal.Operation.DELETE, name);
+
+		modify(() -> {
+			node.children.remove(name);
+			node.removedChildren.add(name);
+		});
+
+		handles.remove(name);
+		listing = null;
 		return true;
 	}
 
-	public Vfs mkdir(String name) {
-		if (directoryContent == null) throw new IllegalArgumentException(Messages.FILE_ISNOTDIR);
+	public synchronized Vfs mkdir(String name) {
+		if (!node.isDir()) throw new IllegalArgumentException(Messages.FILE_ISNOTDIR);
 
 		Vfs file = get(name);
 		if (file != null && file.isDir()) return file;
-
-		file = new Vfs(this, name).initAsDir();
-		directoryContent.put(name, file);
-		removedChildren.remove(name);
-		return file;
+		record(VfsJournal.Operation.MKDIR, name);
+		return put(name, VfsNode.createDir(null));
 	}
 
-	public Vfs touch(String name) {
-		if (directoryContent == null) throw new IllegalArgumentException(Messages.FILE_ISNOTDIR);
+	public synchronized Vfs touch(String name) {
+		if (!node.isDir()) throw new IllegalArgumentException(Messages.FILE_ISNOTDIR);
 
 		Vfs file = get(name);
 		if (file != null && !file.isDir()) return file;
-
-		file = new Vfs(this, name);
-		file.content = new byte[0];
-		directoryContent.put(name, file);
-		removedChildren.remove(name);
-		return file;
+		record(VfsJournal.Operation.TOUCH, name);
+		return put(name, VfsNode.createFile(getBlobStore().store(new byte[0])));
 	}
 
 	public Vfs touch(Path path) {
@@ -196,33 +278,190 @@ public class Vfs {
 		return current.touch(segments[segments.length - 1]);
 	}
 
+	private Vfs put(String name, VfsNode child) {
+		modify(() -> {
+			node.children.put(name, child);
+			node.removedChildren.remove(name);
+		});
+
+		listing = null;
+		return getHandle(name, child);
+	}
+
+	public Vfs graft(String name, Vfs from) {
+		if (!node.isDir()) throw new IllegalArgumentException(Messages.FILE_ISNOTDIR);
+		if (from.parent == null) throw new IllegalArgumentException("Can't attach root directory");
+
+		// Lock the source alone, so it can't be modified in place while being marked as shared
+		VfsNode shared;
+
+		synchronized (from) {
+			shared = from.node;
+			shared.shared = true;
+		}
+
+		synchronized (this) {
+			record(VfsJournal.Operation.GRAFT, name);
+			return put(name, shared);
+		}
+	}
+
+	public Vfs graft(Vfs from) {
+		return graft(from.name, from);
+	}
+
+	public synchronized Vfs link(String name, java.nio.file.Path nativeFile) {
+		if (!node.isDir()) throw new IllegalArgumentException(Messages.FILE_ISNOTDIR);
+		if (Files.isDirectory(nativeFile)) throw new IllegalArgumentException(Messages.FILE_ISDIR);
+
+		record(VfsJournal.Operation.WRITE, name);
+		return put(name, VfsNode.fromNative(nativeFile));
+	}
+
+	public boolean isNative() {
+		return node.nativePath != null;
+	}
+
+	public java.nio.file.Path getNativePath() {
+		return node.nativePath;
+	}
+
 	public InputStream getInputStream() {
-		if (directoryContent != null) throw new IllegalArgumentException(Messages.FILE_ISDIR);
-		if (nativePath != null) {
+		VfsNode node = this.node;
+		if (node.isDir()) throw new IllegalArgumentException(Messages.FILE_ISDIR);
+		recordRead(VfsJournal.Operation.READ, null);
+		if (node.nativePath != null) {
 			try {
-				return Files.newInputStream(nativePath, StandardOpenOption.READ);
+				return VfsStats.count(Files.newInputStream(node.nativePath, StandardOpenOption.READ));
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
 		}
-		return new ByteArrayInputStream(content);
+
+		VfsStats.addBytesRead(node.content.length);
+		return new ByteArrayInputStream(node.content.getData());
 	}
 
 	public OutputStream getOutputStream() {
-		if (directoryContent != null) throw new IllegalArgumentException(Messages.FILE_ISDIR);
+		if (node.isDir()) throw new IllegalArgumentException(Messages.FILE_ISDIR);
 		return new VfsOutputStream(this);
 	}
 
+	void setContent(byte[] content) {
+		VfsNode file = VfsNode.createFile(getBlobStore().store(content));
+		VfsStats.addBytesWritten(content.length);
+
+		synchronized (this) {
+			record(VfsJournal.Operation.WRITE, null);
+
+			if (parent == null) {
+				node = file;
+				return;
+			}
+
+			synchronized (parent) {
+				parent.modify(() -> replaceNode(file));
+			}
+		}
+	}
+
 	public byte[] getContent() {
-		if (content != null) return content;
+		VfsNode node = this.node;
+		if (node.isDir()) throw new IllegalArgumentException(Messages.FILE_ISDIR);
+		recordRead(VfsJournal.Operation.READ, null);
+		if (node.content != null) {
+			VfsStats.addBytesRead(node.content.length);
+			return node.content.getData();
+		}
+
+		try {
+			byte[] content = Files.readAllBytes(node.nativePath);
+			VfsStats.addBytesRead(content.length);
+			return content;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public String getContentHash() {
+		VfsNode node = this.node;
+		recordRead(VfsJournal.Operation.READ, null);
+		if (node.content != null) return node.content.hash;
+		return BlobStore.hash(getContentBuffer(node));
+	}
+
+	public ByteBuffer getContentBuffer() {
+		ByteBuffer buffer = getContentBuffer(node);
+		recordRead(VfsJournal.Operation.READ, null);
+		VfsStats.addBytesRead(buffer.remaining());
+		return buffer;
+	}
+
+	private static ByteBuffer getContentBuffer(VfsNode node) {
+		if (node.isDir()) throw new IllegalArgumentException(Messages.FILE_ISDIR);
+		if (node.content != null) return ByteBuffer.wrap(node.content.getData()).asReadOnlyBuffer();
 
-		try (InputStream input = getInputStream()) {
-			return input.readAllBytes();
+		try {
+			java.nio.file.Path path = node.nativePath;
+
+			// Only files from default file system can be mapped; files inside JARs are read normally
+			if (path.getFileSystem() == FileSystems.getDefault() && Files.size(path) >= MAPPING_THRESHOLD) {
+				try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+					return channel.map(MapMode.READ_ONLY, 0, channel.size());
+				}
+			}
+
+			return ByteBuffer.wrap(Files.readAllBytes(path)).asReadOnlyBuffer();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	public void walk(VfsVisitor visitor) throws IOException {
+		walkChildren(visitor);
+	}
+
+	private FileVisitResult walkChildren(VfsVisitor visitor) throws IOException {
+		for (Vfs file : listFiles()) {
+			FileVisitResult result;
+
+			if (file.isDir()) {
+				result = visitor.visitDirectory(file);
+				if (result == FileVisitResult.CONTINUE) result = file.walkChildren(visitor);
+				else if (result == FileVisitResult.SKIP_SUBTREE) result = FileVisitResult.CONTINUE;
+			} else {
+				result = visitor.visitFile(file);
+			}
+
+			if (result == FileVisitResult.TERMINATE) return result;
+			if (result == FileVisitResult.SKIP_SIBLINGS) break;
+		}
+
+		return FileVisitResult.CONTINUE;
+	}
+
+	public Spliterator<Vfs> spliterator() {
+		return new VfsSpliterator(this);
+	}
+
+	public Stream<Vfs> files(boolean parallel) {
+		return StreamSupport.stream(spliterator(), parallel);
+	}
+
+	public Stream<Vfs> files() {
+		return files(false);
+	}
+
+	public static Predicate<Vfs> hasExtension(String... extensions) {
+		return file -> {
+			for (String ext : extensions) {
+				if (file.name != null && file.name.length() > ext.length() && file.name.endsWith(ext) && file.name.charAt(file.name.length() - ext.length() - 1) == '.') return true;
+			}
+
+			return false;
+		};
+	}
+
 	public void dumpContentTo(java.nio.file.Path root) throws IOException {
 		for (Vfs file : listFiles()) {
 			if (file.isDir()) {
@@ -240,7 +479,70 @@ public class Vfs {
 
 	@Override
 	public String toString() {
-		return "vfs:/" + getPathFromRoot() + (nativePath != null? " (physical)" : "");
+		return "vfs:/" + getPathFromRoot() + (node.nativePath != null? " (physical)" : "");
+	}
+
+	public Vfs snapshot() {
+		VfsNode shared;
+
+		synchronized (this) {
+			if (!node.isDir()) throw new IllegalArgumentException(Messages.FILE_ISNOTDIR);
+			shared = node;
+			shared.shared = true;
+		}
+
+		Vfs vfs = new Vfs(null, null, shared);
+		vfs.blobs = getBlobStore();
+		return vfs;
+	}
+
+	public static List<VfsChange> diff(Vfs from, Vfs to) {
+		if (!from.isDir() || !to.isDir()) throw new IllegalArgumentException(Messages.FILE_ISNOTDIR);
+		List<VfsChange> changes = new ArrayList<>();
+		diffNodes(Path.ROOT, from.node, to.node, changes);
+		return changes;
+	}
+
+	private static void diffNodes(Path path, VfsNode from, VfsNode to, List<VfsChange> changes) {
+		if (from == to) return;
+
+		if (from == null || to == null || from.isDir() != to.isDir()) {
+			if (from != null) collectFiles(path, from, VfsChange.Type.REMOVED, changes);
+			if (to != null) collectFiles(path, to, VfsChange.Type.ADDED, changes);
+			return;
+		}
+
+		if (!from.isDir()) {
+			if (!isSameContent(from, to)) changes.add(new VfsChange(VfsChange.Type.MODIFIED, path));
+			return;
+		}
+
+		from.listNative();
+		to.listNative();
+		TreeSet<String> names = new TreeSet<>(from.children.keySet());
+		names.addAll(to.children.keySet());
+		for (String name : names) diffNodes(path.join(name), from.children.get(name), to.children.get(name), changes);
+	}
+
+	private static void collectFiles(Path path, VfsNode node, VfsChange.Type type, List<VfsChange> changes) {
+		if (!node.isDir()) {
+			changes.add(new VfsChange(type, path));
+			return;
+		}
+
+		node.listNative();
+		for (Map.Entry<String, VfsNode> e : node.children.entrySet()) collectFiles(path.join(e.getKey()), e.getValue(), type, changes);
+	}
+
+	private static boolean isSameContent(VfsNode a, VfsNode b) {
+		if (a.content != null && b.content != null) return a.content == b.content || a.content.hash.equals(b.content.hash);
+		if (a.nativePath != null && a.nativePath.equals(b.nativePath)) return true;
+		return getContentHash(a).equals(getContentHash(b));
+	}
+
+	private static String getContentHash(VfsNode node) {
+		if (node.content != null) return node.content.hash;
+		return BlobStore.hash(getContentBuffer(node));
 	}
 
 	public static void copyRecursive(Vfs from, Vfs to) {
@@ -249,15 +551,8 @@ public class Vfs {
 		for (Vfs fromFile : from.listFiles()) {
 			Vfs toFile = to.get(fromFile.name);
 
-			if (fromFile.isDir()) {
-				if (toFile != null && !toFile.isDir()) to.delete(fromFile.name);
-				toFile = to.mkdir(fromFile.name);
-				copyRecursive(fromFile, toFile);
-			} else {
-				if (toFile != null && toFile.isDir()) to.delete(fromFile.name);
-				toFile = to.touch(fromFile.name);
-				toFile.content = fromFile.getContent();
-			}
+			if (fromFile.isDir() && toFile != null && toFile.isDir()) copyRecursive(fromFile, toFile);
+			else to.graft(fromFile);
 		}
 	}
 }
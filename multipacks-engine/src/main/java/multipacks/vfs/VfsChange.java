@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.vfs;
+
+/**
+ * @author nahkd
+ *
+ */
+public class VfsChange {
+	public final Type type;
+	public final Path path;
+
+	public VfsChange(Type type, Path path) {
+		this.type = type;
+		this.path = path;
+	}
+
+	@Override
+	public int hashCode() {
+		return type.hashCode() * 31 + path.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof VfsChange other)) return false;
+		return type == other.type && path.equals(other.path);
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + path;
+	}
+
+	public static enum Type {
+		ADDED,
+		REMOVED,
+		MODIFIED;
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.vfs;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * @author nahkd
+ *
+ */
+public class VfsJournal {
+	private final List<Entry> entries = new ArrayList<>();
+	private final boolean trackingReads;
+
+	public VfsJournal(boolean trackingReads) {
+		this.trackingReads = trackingReads;
+	}
+
+	public VfsJournal() {
+		this(false);
+	}
+
+	public boolean isTrackingReads() {
+		return trackingReads;
+	}
+
+	void record(Operation operation, Path path) {
+		Entry entry = new Entry(operation, path);
+		synchronized (this) { entries.add(entry); }
+	}
+
+	public synchronized List<Entry> getEntries() {
+		return new ArrayList<>(entries);
+	}
+
+	public synchronized Set<Path> getChangedPaths() {
+		Set<Path> paths = new LinkedHashSet<>();
+		for (Entry entry : entries) if (!entry.operation.isRead()) paths.add(entry.path);
+		return paths;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public static class Entry {
+		public final Operation operation;
+		public final Path path;
+
+		public Entry(Operation operation, Path path) {
+			this.operation = operation;
+			this.path = path;
+		}
+
+		@Override
+		public String toString() {
+			return operation + " " + path;
+		}
+	}
+
+	public static enum Operation {
+		TOUCH,
+		MKDIR,
+		DELETE,
+		WRITE,
+		GRAFT,
+		LOOKUP,
+		LIST,
+		READ;
+
+		public boolean isRead() {
+			return this == LOOKUP || this == LIST || this == READ;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.vfs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+
+/**
+ * @author nahkd
+ *
+ */
+class VfsNode {
+	java.nio.file.Path nativePath;
+	BlobStore.Entry content;
+	ConcurrentSkipListMap<String, VfsNode> children;
+	Set<String> removedChildren;
+	volatile boolean nativeListed;
+	volatile boolean shared;
+
+	static VfsNode createDir(java.nio.file.Path nativePath) {
+		VfsNode node = new VfsNode();
+		node.nativePath = nativePath;
+		node.children = new ConcurrentSkipListMap<>();
+		node.removedChildren = ConcurrentHashMap.newKeySet();
+		return node;
+	}
+
+	static VfsNode createFile(BlobStore.Entry content) {
+		VfsNode node = new VfsNode();
+		node.content = content;
+		return node;
+	}
+
+	static VfsNode fromNative(java.nio.file.Path nativePath) {
+		if (Files.isDirectory(nativePath)) return createDir(nativePath);
+		VfsNode node = new VfsNode();
+		node.nativePath = nativePath;
+		return node;
+	}
+
+	boolean isDir() {
+		return children != null;
+	}
+
+	synchronized void listNative() {
+		if (nativePath == null || nativeListed) return;
+
+		try (Stream<java.nio.file.Path> stream = Files.list(nativePath)) {
+			stream.forEach(child -> {
+				String childName = child.getFileName().toString();
+				if (removedChildren.contains(childName)) return;
+				children.putIfAbsent(childName, fromNative(child));
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		nativeListed = true;
+	}
+
+	VfsNode copy() {
+		VfsNode node = new VfsNode();
+		node.nativePath = nativePath;
+		node.content = content;
+
+		if (children != null) {
+			node.children = new ConcurrentSkipListMap<>(children);
+			node.removedChildren = ConcurrentHashMap.newKeySet();
+			node.removedChildren.addAll(removedChildren);
+			node.nativeListed = nativeListed;
+			for (VfsNode child : children.values()) child.shared = true;
+		}
+
+		return node;
+	}
+}
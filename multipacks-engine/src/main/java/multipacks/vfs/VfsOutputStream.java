@@ -26,6 +26,7 @@ import java.io.OutputStream;
 public class VfsOutputStream extends OutputStream {
 	private Vfs target;
 	private ByteArrayOutputStream stream;
+	private boolean dirty = true;
 
 	public VfsOutputStream(Vfs target) {
 		this.target = target;
@@ -35,22 +36,26 @@ public class VfsOutputStream extends OutputStream {
 	@Override
 	public void write(int b) throws IOException {
 		stream.write(b);
+		dirty = true;
 	}
 
 	@Override
 	public void write(byte[] b) throws IOException {
 		stream.write(b);
+		dirty = true;
 	}
 
 	@Override
 	public void write(byte[] b, int off, int len) throws IOException {
 		stream.write(b, off, len);
+		dirty = true;
 	}
 
 	@Override
 	public void flush() throws IOException {
-		target.nativePath = null;
-		target.content = stream.toByteArray();
+		if (!dirty) return;
+		dirty = false;
+		target.setContent(stream.toByteArray());
 	}
 
 	@Override
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.vfs;
+
+import java.util.ArrayDeque;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * @author nahkd
+ *
+ */
+class VfsSpliterator implements Spliterator<Vfs> {
+	private final ArrayDeque<Vfs> pending;
+
+	VfsSpliterator(Vfs root) {
+		pending = new ArrayDeque<>();
+		pending.add(root);
+	}
+
+	private VfsSpliterator(ArrayDeque<Vfs> pending) {
+		this.pending = pending;
+	}
+
+	private void expand(Vfs directory) {
+		Vfs[] children = directory.listFiles();
+		for (int i = children.length - 1; i >= 0; i--) pending.addFirst(children[i]);
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super Vfs> action) {
+		Vfs next;
+
+		while ((next = pending.pollFirst()) != null) {
+			if (!next.isDir()) {
+				action.accept(next);
+				return true;
+			}
+
+			expand(next);
+		}
+
+		return false;
+	}
+
+	@Override
+	public Spliterator<Vfs> trySplit() {
+		while (pending.size() == 1 && pending.peekFirst().isDir()) expand(pending.pollFirst());
+		if (pending.size() < 2) return null;
+
+		// Prefix goes to the new spliterator to keep the encounter order
+		int half = pending.size() / 2;
+		ArrayDeque<Vfs> prefix = new ArrayDeque<>(half);
+		for (int i = 0; i < half; i++) prefix.addLast(pending.pollFirst());
+		return new VfsSpliterator(prefix);
+	}
+
+	@Override
+	public long estimateSize() {
+		for (Vfs v : pending) if (v.isDir()) return Long.MAX_VALUE;
+		return pending.size();
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | DISTINCT | NONNULL;
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.vfs;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author nahkd
+ *
+ */
+public class VfsStats {
+	private static final ThreadLocal<VfsStats> CURRENT = new ThreadLocal<>();
+
+	private final VfsStats build;
+	private final ThreadLocal<VfsStats> threads;
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder filesTouched = new LongAdder();
+
+	public VfsStats() {
+		this.build = this;
+		this.threads = ThreadLocal.withInitial(() -> new VfsStats(this));
+	}
+
+	private VfsStats(VfsStats build) {
+		this.build = build;
+		this.threads = null;
+	}
+
+	/**
+	 * Count Vfs operations of tasks that are executed by returned executor.
+	 */
+	public Executor wrap(Executor executor) {
+		return task -> executor.execute(() -> run(task));
+	}
+
+	public void run(Runnable task) {
+		VfsStats previous = CURRENT.get();
+		CURRENT.set(build);
+
+		try {
+			task.run();
+		} finally {
+			if (previous != null) CURRENT.set(previous);
+			else CURRENT.remove();
+		}
+	}
+
+	public static boolean isEnabled() {
+		return CURRENT.get() != null;
+	}
+
+	static void addBytesRead(long bytes) {
+		VfsStats stats = current();
+		if (stats != null) stats.addBytesRead0(bytes);
+	}
+
+	static void addBytesWritten(long bytes) {
+		VfsStats stats = current();
+		if (stats == null) return;
+		stats.bytesWritten.add(bytes);
+		stats.build.bytesWritten.add(bytes);
+	}
+
+	static void addFilesTouched() {
+		VfsStats stats = current();
+		if (stats == null) return;
+		stats.filesTouched.increment();
+		stats.build.filesTouched.increment();
+	}
+
+	private void addBytesRead0(long bytes) {
+		bytesRead.add(bytes);
+		build.bytesRead.add(bytes);
+	}
+
+	static InputStream count(InputStream stream) {
+		VfsStats stats = current();
+		if (stats == null) return stream;
+
+		// Stream might be read from other threads, but it is still counted for the thread that opened it
+		return new FilterInputStream(stream) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b != -1) stats.addBytesRead0(1);
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = super.read(b, off, len);
+				if (read > 0) stats.addBytesRead0(read);
+				return read;
+			}
+		};
+	}
+
+	/**
+	 * Get statistics of current thread for the build that is running on this thread, or {@code null} if Vfs operations
+	 * on this thread are not counted.
+	 */
+	public static VfsStats current() {
+		VfsStats build = CURRENT.get();
+		return build != null? build.threads.get() : null;
+	}
+
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	public long getFilesTouched() {
+		return filesTouched.sum();
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.vfs;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+
+/**
+ * @author nahkd
+ *
+ */
+@FunctionalInterface
+public interface VfsVisitor {
+	default FileVisitResult visitDirectory(Vfs directory) throws IOException {
+		return FileVisitResult.CONTINUE;
+	}
+
+	FileVisitResult visitFile(Vfs file) throws IOException;
+}
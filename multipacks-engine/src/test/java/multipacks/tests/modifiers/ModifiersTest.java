@@ -17,15 +17,26 @@ package multipacks.tests.modifiers;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
 import org.junit.jupiter.api.Test;
 
+import com.google.gson.JsonObject;
+
+import multipacks.bundling.BuildCache;
 import multipacks.bundling.BundleResult;
 import multipacks.bundling.Bundler;
 import multipacks.modifier.Modifier;
 import multipacks.modifier.builtin.atlases.AtlasesModifier;
 import multipacks.modifier.builtin.glyphs.GlyphsModifier;
+import multipacks.modifier.builtin.models.BaseItemModel;
 import multipacks.modifier.builtin.models.ModelsModifier;
+import multipacks.modifier.builtin.models.overrides.TrimModelOverride;
 import multipacks.modifier.builtin.slices.SlicesModifier;
+import multipacks.packs.LocalPack;
 import multipacks.packs.Pack;
 import multipacks.tests.TestPlatform;
 import multipacks.tests.TestUtils;
@@ -56,6 +67,75 @@ class ModifiersTest {
 		} else fail("Not an instance of GlyphsModifier");
 	}
 
+	@Test
+	void testCachedModifiers() throws Exception {
+		Pack pack = TestUtils.getSamplePack();
+		BuildCache cache = new BuildCache(Files.createTempDirectory("multipacks-test-cache"));
+
+		try {
+			BundleResult first = new Bundler().fromPlatform(new TestPlatform()).setBuildCache(cache).bundle(pack, new Version("1.19.3"));
+			BundleResult second = new Bundler().fromPlatform(new TestPlatform()).setBuildCache(cache).bundle(pack, new Version("1.19.3"));
+			assertEquals(first.getFingerprint(), second.getFingerprint());
+			assertEquals(first.getModifiers().keySet(), second.getModifiers().keySet());
+
+			// Glyphs must be assigned to the same characters, so plugins can still use them after loading from cache
+			GlyphsModifier a = (GlyphsModifier) first.getModifiers().get(GlyphsModifier.ID);
+			GlyphsModifier b = (GlyphsModifier) second.getModifiers().get(GlyphsModifier.ID);
+			assertEquals(a.glyphs.keySet(), b.glyphs.keySet());
+			a.glyphs.forEach((id, glyph) -> assertEquals(glyph.assigned, b.glyphs.get(id).assigned));
+		} finally {
+			cache.clear();
+		}
+	}
+
+	@Test
+	void testCachedModifierInvocations() throws Exception {
+		java.nio.file.Path packDir = Files.createTempDirectory("multipacks-test-pack");
+		java.nio.file.Path sampleDir = TestUtils.getSamplePack().packRoot;
+
+		try (Stream<java.nio.file.Path> files = Files.walk(sampleDir)) {
+			for (java.nio.file.Path file : files.toList()) {
+				java.nio.file.Path target = packDir.resolve(sampleDir.relativize(file).toString());
+				if (Files.isDirectory(file)) Files.createDirectories(target);
+				else Files.copy(file, target);
+			}
+		}
+
+		BuildCache cache = new BuildCache(Files.createTempDirectory("multipacks-test-cache"));
+
+		try {
+			LocalPack pack = new LocalPack(packDir);
+			pack.loadFromStorage();
+			new Bundler().fromPlatform(new TestPlatform()).setBuildCache(cache).bundle(pack, new Version("1.19.3"));
+			assertEquals(0, cache.getHits());
+
+			// Slices modifier does not read the new file, so its outputs are reused
+			Files.writeString(packDir.resolve("assets/multipacks/unrelated.txt"), "Hello");
+			BundleResult cached = new Bundler().fromPlatform(new TestPlatform()).setBuildCache(cache).bundle(pack, new Version("1.19.3"));
+			BundleResult uncached = new Bundler().fromPlatform(new TestPlatform()).bundle(pack, new Version("1.19.3"));
+			assertEquals(1, cache.getHits());
+			assertEquals(0, Vfs.diff(uncached.contents, cached.contents).size());
+
+			// Changing the sliced image must invalidate cached outputs
+			Files.copy(sampleDir.resolve("pack.png"), packDir.resolve("assets/multipacks/textures/sample_atlas.png"), StandardCopyOption.REPLACE_EXISTING);
+			new Bundler().fromPlatform(new TestPlatform()).setBuildCache(cache).bundle(pack, new Version("1.19.3"));
+			assertEquals(1, cache.getHits());
+
+			cache.prune(0L);
+			assertNotEquals(0, Files.list(cache.root.resolve(BuildCache.DIR_STAGES)).count());
+			cache.prune(Long.MAX_VALUE);
+			assertEquals(0, Files.list(cache.root.resolve(BuildCache.DIR_STAGES)).count());
+			assertEquals(0, Files.list(cache.root.resolve(BuildCache.DIR_ARTIFACTS)).count());
+			assertEquals(0, Files.walk(cache.root.resolve(BuildCache.DIR_OBJECTS)).filter(Files::isRegularFile).count());
+		} finally {
+			cache.clear();
+
+			try (Stream<java.nio.file.Path> files = Files.walk(packDir)) {
+				for (java.nio.file.Path file : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(file);
+			}
+		}
+	}
+
 	@Test
 	void testModelsModifier() {
 		BundleResult result = obtainBundle();
@@ -66,6 +146,23 @@ class ModifiersTest {
 		} else fail("Not an instance of ModelsModifier");
 	}
 
+	@Test
+	void testTrimAllocation() {
+		ResourcePath item = new ResourcePath("minecraft", "item/iron_chestplate");
+		ResourcePath model = new ResourcePath("sample", "item/armor");
+		BaseItemModel first = new BaseItemModel(item, new JsonObject());
+		BaseItemModel second = new BaseItemModel(item, new JsonObject());
+
+		// Reproducible builds must allocate the same trim types every time
+		TrimModelOverride allocated = first.allocateTrim(model, null);
+		assertEquals(allocated.trimType, second.allocateTrim(model, null).trimType);
+
+		// Allocated trim types are never used again, even for the same model
+		assertNotEquals(allocated.trimType, first.allocateTrim(model, null).trimType);
+		BaseItemModel existing = new BaseItemModel(item, first.toModelJson());
+		assertNotEquals(allocated.trimType, existing.allocateTrim(model, null).trimType);
+	}
+
 	@Test
 	void testSlicesModifier() {
 		BundleResult result = obtainBundle();
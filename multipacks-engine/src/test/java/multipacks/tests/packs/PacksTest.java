@@ -17,20 +17,59 @@ package multipacks.tests.packs;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
 import org.junit.jupiter.api.Test;
 
+import com.google.gson.JsonObject;
+
+import multipacks.bundling.BuildProfiler;
+import multipacks.bundling.BundleListener;
+import multipacks.bundling.BundleResult;
+import multipacks.bundling.BundleStage;
 import multipacks.bundling.Bundler;
+import multipacks.bundling.zip.CompressionPolicy;
+import multipacks.bundling.zip.ParallelZipWriter;
+import multipacks.bundling.zip.ZipIndex;
+import multipacks.modifier.builtin.glyphs.GlyphsModifier;
 import multipacks.packs.Pack;
 import multipacks.packs.meta.PackIndex;
 import multipacks.tests.TestPlatform;
 import multipacks.tests.TestUtils;
+import multipacks.utils.ResourcePath;
+import multipacks.versioning.Version;
+import multipacks.vfs.Vfs;
+import multipacks.vfs.VfsChange;
+import multipacks.vfs.VfsStats;
 
 /**
  * @author nahkd
@@ -59,4 +98,371 @@ class PacksTest {
 		FileSystem fs = FileSystems.newFileSystem(Paths.get("testartifact_PacksTest_001.zip"));
 		assertTrue(Files.exists(fs.getPath("assets/multipacks/models/sample_model.json")));
 	}
+
+	@Test
+	void testStreamingBundleToZip() throws Exception {
+		Pack pack = TestUtils.getSamplePack();
+		ByteArrayOutputStream zipData = new ByteArrayOutputStream();
+		BundleResult streamed = new Bundler().fromPlatform(new TestPlatform()).bundleToZip(pack, pack.getIndex().sourceGameVersion, zipData).get();
+
+		// Zip must contains final contents, including files that are modified or removed by modifiers after copying
+		assertZipContents(streamed.contents, zipData.toByteArray());
+	}
+
+	@Test
+	void testParallelZipData() throws Exception {
+		Pack pack = TestUtils.getSamplePack();
+		BundleResult result = new Bundler().fromPlatform(new TestPlatform()).bundle(pack, pack.getIndex().sourceGameVersion);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+
+		try {
+			// Output must not depends on the number of threads; serial writer never uses the executor
+			ByteArrayOutputStream serial = new ByteArrayOutputStream(), parallel = new ByteArrayOutputStream();
+			new ParallelZipWriter(command -> fail("Serial writer used executor"), 1, Deflater.DEFAULT_COMPRESSION).setTime(0L).write(result.contents, serial);
+			new ParallelZipWriter(executor, 8, Deflater.DEFAULT_COMPRESSION).setTime(0L).write(result.contents, parallel);
+			assertArrayEquals(serial.toByteArray(), parallel.toByteArray(), "Parallel output");
+			assertZipContents(result.contents, parallel.toByteArray());
+
+			// Entries have the same timestamps as entries from ZipOutputStream
+			long time = 1672531200000L;
+			ByteArrayOutputStream timed = new ByteArrayOutputStream(), jdk = new ByteArrayOutputStream();
+			new ParallelZipWriter(executor, 8, Deflater.DEFAULT_COMPRESSION).setTime(time).write(result.contents, timed);
+
+			try (ZipOutputStream zip = new ZipOutputStream(jdk)) {
+				for (Vfs file : result.contents.files().sorted(Comparator.comparing(file -> file.getPathFromRoot().toString())).toList()) {
+					zip.putNextEntry(new ZipEntry(file.getPathFromRoot().toString()).setCreationTime(FileTime.fromMillis(time)).setLastModifiedTime(FileTime.fromMillis(time)));
+					zip.write(file.getContent());
+				}
+			}
+
+			List<String> expected = new ArrayList<>(), actual = new ArrayList<>();
+			forEachEntry(jdk.toByteArray(), (entry, data) -> expected.add(entry.getName() + " " + entry.getCreationTime() + " " + entry.getLastModifiedTime() + " " + entry.getTime()));
+			forEachEntry(timed.toByteArray(), (entry, data) -> actual.add(entry.getName() + " " + entry.getCreationTime() + " " + entry.getLastModifiedTime() + " " + entry.getTime()));
+			assertEquals(expected, actual);
+			forEachEntry(serial.toByteArray(), (entry, data) -> assertNull(entry.getCreationTime(), entry.getName()));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	void testCompressionPolicy() throws Exception {
+		CompressionPolicy policy = CompressionPolicy.parse("assets/**.json=9,*.txt=stored,default=1,adaptive=10");
+		assertEquals(9, policy.getLevel("assets/sample/models/item/barrier.json"));
+		assertEquals(1, policy.getLevel("pack.mcmeta"));
+		assertEquals(CompressionPolicy.STORED, policy.getLevel("dir/file.txt"));
+		assertEquals(CompressionPolicy.STORED, policy.getLevel("assets/sample/textures/item/glyph.png"));
+		assertEquals(policy.toJson(), CompressionPolicy.fromJson(policy.toJson()).toJson());
+		assertThrows(IllegalArgumentException.class, () -> CompressionPolicy.parse("*.json=10"));
+
+		// Already compressed files are only deflated when configs opt out
+		assertEquals(CompressionPolicy.STORED, CompressionPolicy.parse("default=6").getLevel("pack.png"));
+		assertEquals(6, CompressionPolicy.parse("default=6,storeAlreadyCompressed=false").getLevel("pack.png"));
+		CompressionPolicy optOut = CompressionPolicy.parse("*.ogg=stored,storeAlreadyCompressed=false");
+		assertEquals(optOut.toJson(), CompressionPolicy.fromJson(optOut.toJson()).toJson());
+		assertEquals(Deflater.DEFAULT_COMPRESSION, CompressionPolicy.fromJson(optOut.toJson()).getLevel("pack.png"));
+
+		// Random data can't be compressed, so adaptive mode must store it
+		Vfs contents = Vfs.createVirtualRoot();
+		byte[] random = new byte[CompressionPolicy.SAMPLE_SIZE * 2];
+		new Random(1234).nextBytes(random);
+		write(contents.touch("random.bin"), random);
+		write(contents.touch("text.json"), "{}".repeat(4096).getBytes());
+
+		ByteArrayOutputStream zipData = new ByteArrayOutputStream();
+		new ParallelZipWriter(Runnable::run, 1, policy).write(contents, zipData);
+		assertZipContents(contents, zipData.toByteArray());
+
+		Map<String, Integer> methods = new HashMap<>();
+		forEachEntry(zipData.toByteArray(), (entry, data) -> methods.put(entry.getName(), entry.getMethod()));
+		assertEquals(ZipEntry.STORED, (int) methods.get("random.bin"));
+		assertEquals(ZipEntry.DEFLATED, (int) methods.get("text.json"));
+
+		// Without policy, the default policy is used everywhere
+		write(contents.touch("pack.png"), new byte[1000]);
+		ByteArrayOutputStream defaultZipData = new ByteArrayOutputStream();
+		new BundleResult(contents).writeZipData(defaultZipData);
+		forEachEntry(defaultZipData.toByteArray(), (entry, data) -> assertEquals(entry.getName().endsWith(".png")? ZipEntry.STORED : ZipEntry.DEFLATED, entry.getMethod(), entry.getName()));
+	}
+
+	@Test
+	void testNativeStoredEntries() throws Exception {
+		Path dir = Files.createTempDirectory("multipacks-test-native");
+		byte[] sound = new byte[(int) Vfs.MAPPING_THRESHOLD * 2];
+		new Random(1234).nextBytes(sound);
+		Files.write(dir.resolve("sound.ogg"), sound);
+
+		Vfs contents = Vfs.createVirtualRoot();
+		contents.mkdir("sounds").link("sound.ogg", dir.resolve("sound.ogg"));
+		write(contents.touch("sounds.json"), "{}".getBytes());
+
+		try {
+			// Native files are transferred to file outputs directly, which must produce the same bytes as other outputs
+			Path zipFile = dir.resolve("output.zip");
+			ByteArrayOutputStream memory = new ByteArrayOutputStream();
+
+			try (FileOutputStream stream = new FileOutputStream(zipFile.toFile())) {
+				new ParallelZipWriter(Runnable::run, 1, CompressionPolicy.createDefault()).setTime(0L).write(contents, stream);
+			}
+
+			new ParallelZipWriter(Runnable::run, 1, CompressionPolicy.createDefault()).setTime(0L).write(contents, memory);
+			assertArrayEquals(memory.toByteArray(), Files.readAllBytes(zipFile), "Zip file");
+			assertZipContents(contents, memory.toByteArray());
+			forEachEntry(memory.toByteArray(), (entry, data) -> {
+				if (entry.getName().endsWith(".ogg")) assertEquals(ZipEntry.STORED, entry.getMethod());
+			});
+
+			// Native files must not be modified after computing CRC
+			AtomicLong modified = new AtomicLong();
+			Executor modifying = command -> {
+				command.run();
+				dir.resolve("sound.ogg").toFile().setLastModified(modified.addAndGet(1000L));
+			};
+
+			assertThrows(IOException.class, () -> new ParallelZipWriter(modifying, 2, CompressionPolicy.createDefault()).write(contents, new ByteArrayOutputStream()));
+		} finally {
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	void testZip64() throws Exception {
+		Vfs contents = Vfs.createVirtualRoot();
+		for (int i = 0; i < 70000; i++) write(contents.touch("file" + i + ".txt"), Integer.toString(i).getBytes());
+
+		Path zipFile = Files.createTempFile("multipacks-test-zip64", ".zip");
+
+		try {
+			try (FileOutputStream stream = new FileOutputStream(zipFile.toFile())) {
+				new ParallelZipWriter(Runnable::run, 1, CompressionPolicy.createDefault()).write(contents, stream);
+			}
+
+			try (ZipIndex index = ZipIndex.open(zipFile)) {
+				assertEquals(70000, index.size());
+			}
+
+			try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+				assertEquals(70000, zip.size());
+
+				try (InputStream stream = zip.getInputStream(zip.getEntry("file69999.txt"))) {
+					assertEquals("69999", new String(stream.readAllBytes()));
+				}
+			}
+		} finally {
+			Files.delete(zipFile);
+		}
+	}
+
+	@Test
+	void testReproducibleZip() throws Exception {
+		Pack pack = TestUtils.getSamplePack();
+		ByteArrayOutputStream first = new ByteArrayOutputStream(), second = new ByteArrayOutputStream();
+		new Bundler().fromPlatform(new TestPlatform()).setReproducible(true).bundleToZip(pack, pack.getIndex().sourceGameVersion, first).get();
+		BundleResult result = new Bundler().fromPlatform(new TestPlatform()).setReproducible(true).bundleToZip(pack, pack.getIndex().sourceGameVersion, second).get();
+		assertArrayEquals(first.toByteArray(), second.toByteArray(), "Streamed zip");
+
+		// Streamed zip and zip from result must be the same
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		result.writeReproducibleZipData(written, CompressionPolicy.createDefault());
+		assertArrayEquals(first.toByteArray(), written.toByteArray(), "Written zip");
+
+		List<String> names = new ArrayList<>();
+		forEachEntry(written.toByteArray(), (entry, data) -> names.add(entry.getName()));
+		assertEquals(names.stream().sorted().toList(), names);
+	}
+
+	@Test
+	void testIncrementalZip() throws Exception {
+		Path dir = Files.createTempDirectory("multipacks-test-incremental");
+		Vfs contents = Vfs.createVirtualRoot();
+		Vfs data = contents.mkdir("data");
+		for (int i = 0; i < 10; i++) write(data.touch("file" + i + ".txt"), ("content " + i).repeat(100).getBytes());
+		write(contents.touch("pack.png"), new byte[1000]);
+
+		try {
+			Path zipFile = dir.resolve("previous.zip");
+
+			try (FileOutputStream stream = new FileOutputStream(zipFile.toFile())) {
+				new ParallelZipWriter(Runnable::run, 1, CompressionPolicy.createDefault()).setTime(0L).setIndexed(true).write(contents, stream);
+			}
+
+			write(data.get("file3.txt"), "changed".getBytes());
+
+			// Reusing compressed data must produce the same bytes as compressing everything again
+			ByteArrayOutputStream full = new ByteArrayOutputStream(), incremental = new ByteArrayOutputStream();
+			new ParallelZipWriter(Runnable::run, 1, CompressionPolicy.createDefault()).setTime(0L).setIndexed(true).write(contents, full);
+
+			try (ZipIndex index = ZipIndex.open(zipFile)) {
+				assertEquals(11, index.size());
+				ParallelZipWriter writer = new ParallelZipWriter(Runnable::run, 1, CompressionPolicy.createDefault()).setTime(0L).reuseFrom(index);
+				writer.write(contents, incremental);
+				assertEquals(10, writer.getEntriesReused());
+			}
+
+			assertArrayEquals(full.toByteArray(), incremental.toByteArray(), "Incremental zip");
+
+			// Entries that were compressed with different settings must not be copied
+			try (ZipIndex index = ZipIndex.open(zipFile)) {
+				ParallelZipWriter writer = new ParallelZipWriter(Runnable::run, 1, new CompressionPolicy().setDefaultLevel(CompressionPolicy.STORED)).setTime(0L).reuseFrom(index);
+				writer.write(contents, new ByteArrayOutputStream());
+				assertEquals(1, writer.getEntriesReused());
+
+				writer = new ParallelZipWriter(Runnable::run, 1, CompressionPolicy.createDefault().setAdaptive(10)).setTime(0L).reuseFrom(index);
+				writer.write(contents, new ByteArrayOutputStream());
+				assertEquals(0, writer.getEntriesReused());
+			}
+
+			// Entries are only hashed when requested
+			Path unindexedFile = dir.resolve("unindexed.zip");
+
+			try (FileOutputStream stream = new FileOutputStream(unindexedFile.toFile())) {
+				new ParallelZipWriter(Runnable::run, 1, CompressionPolicy.createDefault()).setTime(0L).write(contents, stream);
+			}
+
+			try (ZipIndex index = ZipIndex.open(unindexedFile)) {
+				ParallelZipWriter writer = new ParallelZipWriter(Runnable::run, 1, CompressionPolicy.createDefault()).setTime(0L).reuseFrom(index);
+				writer.write(contents, new ByteArrayOutputStream());
+				assertEquals(0, writer.getEntriesReused());
+			}
+
+			// Entries from other zip writers don't have content hashes
+			Path foreignFile = dir.resolve("foreign.zip");
+
+			try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(foreignFile.toFile()))) {
+				for (Vfs file : (Iterable<Vfs>) contents.files()::iterator) {
+					zip.putNextEntry(new ZipEntry(file.getPathFromRoot().toString()));
+					zip.write(file.getContent());
+				}
+			}
+
+			try (ZipIndex index = ZipIndex.open(foreignFile)) {
+				assertEquals(11, index.size());
+				ParallelZipWriter writer = new ParallelZipWriter(Runnable::run, 1, CompressionPolicy.createDefault()).setTime(0L).reuseFrom(index);
+				writer.write(contents, new ByteArrayOutputStream());
+				assertEquals(0, writer.getEntriesReused());
+			}
+
+			// Bundler
+			Pack pack = TestUtils.getSamplePack();
+			Path bundleFile = dir.resolve("bundle.zip");
+
+			try (FileOutputStream stream = new FileOutputStream(bundleFile.toFile())) {
+				new Bundler().fromPlatform(new TestPlatform()).setReproducible(true).setIndexed(true).bundleToZip(pack, pack.getIndex().sourceGameVersion, stream).get();
+			}
+
+			try (ZipIndex index = ZipIndex.open(bundleFile)) {
+				ByteArrayOutputStream rebuilt = new ByteArrayOutputStream();
+				new Bundler().fromPlatform(new TestPlatform()).setReproducible(true).bundleToZip(pack, pack.getIndex().sourceGameVersion, rebuilt, List.of(index)).get();
+				assertArrayEquals(Files.readAllBytes(bundleFile), rebuilt.toByteArray(), "Incremental bundle");
+			}
+		} finally {
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	void testMultiTargetBundleToZip() throws Exception {
+		Pack pack = TestUtils.getSamplePack();
+		List<Version> targets = List.of(new Version("1.19.2"), new Version("1.19.3"));
+		List<ByteArrayOutputStream> outputs = List.of(new ByteArrayOutputStream(), new ByteArrayOutputStream());
+		List<BundleResult> results = new Bundler().fromPlatform(new TestPlatform()).bundleToZip(pack, targets, List.copyOf(outputs)).get();
+		assertEquals(2, results.size());
+
+		for (int i = 0; i < results.size(); i++) {
+			assertSame(targets.get(i), results.get(i).getTargetGameVersion());
+			assertZipContents(results.get(i).contents, outputs.get(i).toByteArray());
+		}
+
+		// Only pack.mcmeta depends on target game version
+		List<VfsChange> changes = Vfs.diff(results.get(0).contents, results.get(1).contents);
+		assertEquals(1, changes.size());
+		assertEquals("pack.mcmeta", changes.get(0).path.toString());
+	}
+
+	@Test
+	void testBuildProfiler() throws Exception {
+		Pack pack = TestUtils.getSamplePack();
+		BuildProfiler profiler = new BuildProfiler();
+
+		// Listeners may be wrapped, so profiling is enabled explicitly
+		Bundler bundler = new Bundler().fromPlatform(new TestPlatform()).setListener(new BundleListener() {
+			@Override
+			public void onStageStarted(BundleStage stage, Pack pack) {
+				profiler.onStageStarted(stage, pack);
+			}
+
+			@Override
+			public void onStageStatistics(BundleStage stage, Pack pack, long files, long bytesRead, long bytesWritten) {
+				profiler.onStageStatistics(stage, pack, files, bytesRead, bytesWritten);
+			}
+
+			@Override
+			public void onStageFinished(BundleStage stage, Pack pack) {
+				profiler.onStageFinished(stage, pack);
+			}
+
+			@Override
+			public void onModifierStarted(Pack pack, ResourcePath modifier) {
+				profiler.onModifierStarted(pack, modifier);
+			}
+
+			@Override
+			public void onModifierFinished(Pack pack, ResourcePath modifier) {
+				profiler.onModifierFinished(pack, modifier);
+			}
+		});
+		bundler.setProfiling(true).bundleToZip(pack, pack.getIndex().sourceGameVersion, new ByteArrayOutputStream()).get();
+
+		JsonObject report = profiler.toJson();
+		JsonObject stages = report.getAsJsonObject("stages");
+		for (BundleStage stage : new BundleStage[] { BundleStage.RESOLVE, BundleStage.COPY, BundleStage.MODIFIERS, BundleStage.FINALIZE, BundleStage.ZIP }) assertTrue(stages.has(stage.toString()), stage.toString());
+		assertTrue(stages.getAsJsonObject("COPY").get("files").getAsLong() > 0);
+		assertTrue(stages.getAsJsonObject("ZIP").get("bytesWritten").getAsLong() > 0);
+		assertTrue(report.getAsJsonObject("modifiers").has(GlyphsModifier.ID.toString()));
+		assertTrue(report.getAsJsonObject("packs").has("sample-pack " + pack.getIndex().packVersion.toStringNoPrefix()));
+
+		JsonObject trace = profiler.toChromeTrace();
+		assertTrue(trace.getAsJsonArray("traceEvents").size() > profiler.getSpans().size());
+
+		// Stages that continue on other threads are still counted
+		for (BuildProfiler.Span span : profiler.getSpans()) {
+			if (span.name.equals(BundleStage.RESOLVE.toString())) assertTrue(span.getFiles() >= 0);
+		}
+
+		profiler.clear();
+		bundler.setProfiling(false).bundleToZip(pack, pack.getIndex().sourceGameVersion, new ByteArrayOutputStream()).get();
+		for (BuildProfiler.Span span : profiler.getSpans()) {
+			// Zip statistics are reported by the zip pipeline itself
+			if (!span.name.equals(BundleStage.ZIP.toString())) assertEquals(-1, span.getFiles(), span.name);
+		}
+		assertNull(VfsStats.current());
+	}
+
+	private static void forEachEntry(byte[] zipData, BiConsumer<ZipEntry, byte[]> consumer) throws IOException {
+		try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(zipData))) {
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) consumer.accept(entry, zip.readAllBytes());
+		}
+	}
+
+	private static void assertZipContents(Vfs contents, byte[] zipData) throws IOException {
+		Map<String, byte[]> entries = new HashMap<>();
+		forEachEntry(zipData, (entry, data) -> entries.put(entry.getName(), data));
+		assertEquals(contents.files().count(), entries.size());
+		contents.files().forEach(file -> assertArrayEquals(file.getContent(), entries.get(file.getPathFromRoot().toString()), file.toString()));
+	}
+
+	private static void write(Vfs file, byte[] content) throws IOException {
+		try (OutputStream stream = file.getOutputStream()) {
+			stream.write(content);
+		}
+	}
+
+	private static void deleteDirectory(Path dir) throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			for (Path file : files.toList()) Files.delete(file);
+		}
+
+		Files.delete(dir);
+	}
 }
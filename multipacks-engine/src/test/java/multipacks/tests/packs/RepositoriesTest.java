@@ -17,24 +17,58 @@ package multipacks.tests.packs;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import org.junit.jupiter.api.Test;
 
+import com.google.gson.JsonArray;
+
+import multipacks.bundling.BuildCache;
+import multipacks.bundling.BundleListener;
+import multipacks.bundling.BundleMemo;
 import multipacks.bundling.BundleResult;
+import multipacks.bundling.BundleStage;
 import multipacks.bundling.Bundler;
+import multipacks.bundling.DependencyGraph;
 import multipacks.packs.LocalPack;
 import multipacks.packs.Pack;
 import multipacks.packs.meta.PackIdentifier;
+import multipacks.packs.meta.PackIndex;
+import multipacks.packs.meta.PackLock;
 import multipacks.repository.LocalRepository;
 import multipacks.repository.RepositoriesAccess;
+import multipacks.repository.RepositoriesResolver;
 import multipacks.repository.Repository;
+import multipacks.repository.SimpleRepository;
 import multipacks.repository.query.PackQuery;
 import multipacks.tests.TestUtils;
 import multipacks.versioning.Version;
+import multipacks.vfs.Vfs;
 
 /**
  * @author nahkd
@@ -98,6 +132,371 @@ class RepositoriesTest {
 		assertNotNull(result.contents.get(new multipacks.vfs.Path("pack.png")));
 	}
 
+	@Test
+	void testParallelPacksBundler() throws Exception {
+		Path rootPath = Path.of(this.getClass().getClassLoader().getResource("testRepo").toURI());
+		LocalRepository repo = new LocalRepository(rootPath);
+		Pack master = repo.obtain(new PackIdentifier("master", new Version("1.0.0"))).get();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+
+		try {
+			Bundler bundler = new Bundler().setRepositoriesAccess(() -> Arrays.asList(repo));
+			BundleResult serial = bundler.setExecutor(Runnable::run).bundle(master, master.getIndex().sourceGameVersion);
+			BundleResult parallel = bundler.setExecutor(executor).bundle(master, master.getIndex().sourceGameVersion);
+			assertEquals(0, Vfs.diff(serial.contents, parallel.contents).size());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static Pack virtualPack(String name, Map<String, Integer> bundled, String... dependencies) throws Exception {
+		PackIndex index = new PackIndex(name, new Version("1.0.0"), "PhoMC", new Version("1.19.3"), null);
+		for (String dep : dependencies) index.dependencies.add(PackQuery.parse("name '" + dep + "'"));
+
+		Vfs vfs = Vfs.createVirtualRoot();
+		try (OutputStream stream = vfs.touch(new multipacks.vfs.Path("assets/" + name + ".txt")).getOutputStream()) { stream.write(name.getBytes()); }
+
+		return new Pack() {
+			@Override
+			public PackIndex getIndex() {
+				return index;
+			}
+
+			@Override
+			public JsonArray getModifiersConfig() {
+				return null;
+			}
+
+			@Override
+			public Vfs createVfs() {
+				bundled.merge(name, 1, Integer::sum);
+				return vfs;
+			}
+		};
+	}
+
+	@Test
+	void testDiamondDependencies() throws Exception {
+		Map<String, Integer> bundled = new ConcurrentHashMap<>();
+		Pack top = virtualPack("top", bundled, "left", "right");
+		SimpleRepository repo = new SimpleRepository(
+				virtualPack("left", bundled, "base"),
+				virtualPack("right", bundled, "base"),
+				virtualPack("base", bundled));
+
+		BundleMemo memo = new BundleMemo();
+		Bundler bundler = new Bundler().setRepositoriesAccess(() -> Arrays.asList(repo)).setIncludeLicenses(false).setMemo(memo);
+
+		DependencyGraph graph = bundler.resolveDependencies(top).get();
+		assertEquals(List.of("base", "left", "right", "top"), graph.getNodes().stream().map(n -> n.id.name).toList());
+
+		for (int i = 0; i < 2; i++) {
+			BundleResult result = bundler.bundle(top, new Version("1.19.3"));
+			assertNotNull(result.contents.get(new multipacks.vfs.Path("assets/base.txt")));
+			assertNotNull(result.contents.get(new multipacks.vfs.Path("assets/top.txt")));
+		}
+
+		// Base pack is only bundled once, even across multiple bundle() calls
+		assertEquals(1, (int) bundled.get("base"));
+		assertEquals(3, memo.size());
+	}
+
+	@Test
+	void testDependenciesZipPrefetch() throws Exception {
+		Map<String, Integer> bundled = new ConcurrentHashMap<>();
+		Pack top = virtualPack("top", bundled, "left", "right");
+		Pack left = virtualPack("left", bundled), right = virtualPack("right", bundled);
+		SimpleRepository repo = new SimpleRepository(left, right);
+
+		// Files from dependencies are compressed before they are overridden
+		for (Pack pack : List.of(top, left, right)) {
+			try (OutputStream stream = pack.createVfs().touch(new multipacks.vfs.Path("assets/shared.txt")).getOutputStream()) { stream.write(pack.getIndex().name.getBytes()); }
+		}
+
+		ByteArrayOutputStream zipData = new ByteArrayOutputStream();
+		new Bundler().setRepositoriesAccess(() -> Arrays.asList(repo)).bundleToZip(top, new Version("1.19.3"), zipData).get(5, TimeUnit.SECONDS);
+		Map<String, String> entries = new HashMap<>();
+
+		try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(zipData.toByteArray()))) {
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) entries.put(entry.getName(), new String(zip.readAllBytes()));
+		}
+
+		assertEquals("top", entries.get("assets/shared.txt"));
+		assertEquals("left", entries.get("assets/left.txt"));
+		assertEquals("right", entries.get("assets/right.txt"));
+	}
+
+	@Test
+	void testBuildCache() throws Exception {
+		Map<String, Integer> bundled = new ConcurrentHashMap<>();
+		Pack top = virtualPack("top", bundled, "left", "right");
+		SimpleRepository repo = new SimpleRepository(
+				virtualPack("left", bundled, "base"),
+				virtualPack("right", bundled, "base"),
+				virtualPack("base", bundled));
+		Path cacheDir = Files.createTempDirectory("multipacks-test-cache");
+		BuildCache cache = new BuildCache(cacheDir);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		try {
+			// Each build uses its own memo, so only the build cache is shared
+			BundleResult first = new Bundler().setRepositoriesAccess(() -> Arrays.asList(repo)).setBuildCache(cache).bundle(top, new Version("1.19.3"));
+			assertEquals(0, cache.getHits());
+			assertEquals(4, cache.getMisses());
+			assertNotNull(first.getFingerprint());
+
+			BundleResult second = new Bundler().setRepositoriesAccess(() -> Arrays.asList(repo)).setBuildCache(cache).bundle(top, new Version("1.19.3"));
+			assertEquals(1, cache.getHits());
+			assertEquals(first.getFingerprint(), second.getFingerprint());
+			assertEquals(0, Vfs.diff(first.contents, second.contents).size());
+
+			// Only the final output have to be rebuilt; dependencies of top pack are loaded from cache
+			try (OutputStream stream = top.createVfs().get(new multipacks.vfs.Path("assets/top.txt")).getOutputStream()) { stream.write("changed".getBytes()); }
+			BundleResult third = new Bundler().setRepositoriesAccess(() -> Arrays.asList(repo)).setBuildCache(cache).bundle(top, new Version("1.19.3"));
+			assertEquals(3, cache.getHits());
+			assertNotEquals(first.getFingerprint(), third.getFingerprint());
+			assertEquals("changed", new String(third.contents.get(new multipacks.vfs.Path("assets/top.txt")).getContent()));
+			assertEquals("base", new String(third.contents.get(new multipacks.vfs.Path("assets/base.txt")).getContent()));
+
+			BundleResult otherTarget = new Bundler().setRepositoriesAccess(() -> Arrays.asList(repo)).setBuildCache(cache).bundle(top, new Version("1.19.2"));
+			assertNotEquals(third.getFingerprint(), otherTarget.getFingerprint());
+			assertEquals(5, cache.getHits());
+
+			// Fingerprints are known without bundling, so unchanged builds can be skipped
+			List<String> fingerprints = new Bundler().setRepositoriesAccess(() -> Arrays.asList(repo)).setBuildCache(cache).computeFingerprints(top, List.of(new Version("1.19.3"), new Version("1.19.2"))).get();
+			assertEquals(List.of(third.getFingerprint(), otherTarget.getFingerprint()), fingerprints);
+			assertEquals(5, cache.getHits());
+
+			// Tasks must never wait for each other, otherwise a single worker would wait for itself forever
+			CompletableFuture<BundleResult> singleWorker = new Bundler().setRepositoriesAccess(() -> Arrays.asList(repo)).setBuildCache(cache).setExecutor(executor).bundleAsync(top, new Version("1.19.1"));
+			assertEquals(otherTarget.contents.get(new multipacks.vfs.Path("assets/base.txt")).getContentHash(), singleWorker.get(5, TimeUnit.SECONDS).contents.get(new multipacks.vfs.Path("assets/base.txt")).getContentHash());
+		} finally {
+			executor.shutdown();
+			cache.clear();
+		}
+	}
+
+	@Test
+	void testBuildCacheFileHashes() throws Exception {
+		Path packDir = Files.createTempDirectory("multipacks-test-pack");
+		Path sampleDir = TestUtils.getSamplePack().packRoot;
+		FileTime modified = FileTime.fromMillis(System.currentTimeMillis() - 3600000L);
+
+		try (Stream<Path> files = Files.walk(sampleDir)) {
+			for (Path file : files.toList()) {
+				Path target = packDir.resolve(sampleDir.relativize(file).toString());
+				if (Files.isDirectory(file)) Files.createDirectories(target);
+				else Files.copy(file, target);
+				Files.setLastModifiedTime(target, modified);
+			}
+		}
+
+		LocalPack pack = new LocalPack(packDir);
+		pack.loadFromStorage();
+		BuildCache cache = new BuildCache(Files.createTempDirectory("multipacks-test-cache"));
+
+		try {
+			String fingerprint = cache.fingerprintPack(pack);
+			cache.saveFileHashes();
+			assertTrue(Files.exists(cache.root.resolve(BuildCache.FILE_HASHES)));
+
+			// Files with unchanged size and modification time are not hashed again
+			Path model = packDir.resolve("assets/multipacks/models/sample_model.json");
+			byte[] content = Files.readAllBytes(model);
+			Arrays.fill(content, (byte) ' ');
+			Files.write(model, content);
+			Files.setLastModifiedTime(model, modified);
+			assertEquals(fingerprint, new BuildCache(cache.root).fingerprintPack(pack));
+
+			Files.setLastModifiedTime(model, FileTime.fromMillis(modified.toMillis() + 1000L));
+			assertNotEquals(fingerprint, new BuildCache(cache.root).fingerprintPack(pack));
+		} finally {
+			cache.clear();
+
+			try (Stream<Path> files = Files.walk(packDir)) {
+				for (Path file : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(file);
+			}
+		}
+	}
+
+	@Test
+	void testAsyncBundle() throws Exception {
+		Map<String, Integer> bundled = new ConcurrentHashMap<>();
+		Pack top = virtualPack("top", bundled, "base");
+		SimpleRepository repo = new SimpleRepository(virtualPack("base", bundled));
+		List<String> events = new CopyOnWriteArrayList<>();
+		CountDownLatch resolving = new CountDownLatch(1);
+		CountDownLatch cancelled = new CountDownLatch(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		try {
+			Bundler bundler = new Bundler().setRepositoriesAccess(() -> Arrays.asList(repo)).setExecutor(executor).setListener(new BundleListener() {
+				@Override
+				public void onStageStarted(BundleStage stage, Pack pack) {
+					events.add(stage + " " + pack.getIndex().name);
+
+					if (stage == BundleStage.RESOLVE && resolving.getCount() > 0) {
+						resolving.countDown();
+
+						try {
+							cancelled.await();
+						} catch (InterruptedException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				}
+			});
+
+			// Cancel while resolving; nothing should be bundled after that
+			CompletableFuture<BundleResult> future = bundler.bundleAsync(top, new Version("1.19.3"));
+			resolving.await();
+			future.cancel(true);
+			cancelled.countDown();
+			assertThrows(CancellationException.class, () -> future.join());
+			executor.submit(() -> {}).get();
+			assertTrue(bundled.isEmpty());
+
+			events.clear();
+			BundleResult result = bundler.bundleAsync(top, new Version("1.19.3")).get(10, TimeUnit.SECONDS);
+			assertNotNull(result.contents.get(new multipacks.vfs.Path("assets/base.txt")));
+			assertEquals(List.of("RESOLVE top", "MERGE base", "COPY base", "MERGE top", "COPY top", "FINALIZE top"), events);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	void testDependencyCycle() throws Exception {
+		Map<String, Integer> bundled = new ConcurrentHashMap<>();
+		SimpleRepository repo = new SimpleRepository(virtualPack("a", bundled, "b"), virtualPack("b", bundled, "a"));
+		Bundler bundler = new Bundler().setRepositoriesAccess(() -> Arrays.asList(repo));
+
+		Pack a = repo.obtain(new PackIdentifier("a", new Version("1.0.0"))).get();
+		assertThrows(IllegalArgumentException.class, () -> bundler.bundle(a, new Version("1.19.3")));
+		assertTrue(bundled.isEmpty());
+	}
+
+	@Test
+	void testLockedResolution() throws Exception {
+		Map<String, Integer> bundled = new ConcurrentHashMap<>();
+		AtomicInteger searches = new AtomicInteger();
+		Pack top = virtualPack("top", bundled, "base");
+		Pack base = virtualPack("base", bundled);
+		SimpleRepository repo = new SimpleRepository(base, virtualPack("extra", bundled)) {
+			@Override
+			public CompletableFuture<Collection<PackIdentifier>> search(PackQuery query) {
+				searches.incrementAndGet();
+				return super.search(query);
+			}
+		}.setDisplayName("test");
+
+		PackLock lock = new PackLock();
+		Bundler bundler = new Bundler().setRepositoriesAccess(() -> Arrays.asList(repo)).setLock(lock);
+		bundler.bundle(top, new Version("1.19.3"));
+		assertEquals(1, searches.get());
+		assertEquals(1, lock.size());
+		assertTrue(lock.isDirty());
+
+		// Loaded lock skips searching
+		PackLock loaded = new PackLock(lock.toJson());
+		bundler.setLock(loaded).bundle(top, new Version("1.19.3"));
+		assertEquals(1, searches.get());
+		assertFalse(loaded.isDirty());
+
+		// Changing dependencies invalidates the lock
+		top.getIndex().dependencies.add(PackQuery.parse("name 'extra'"));
+		BundleResult result = bundler.bundle(top, new Version("1.19.3"));
+		assertEquals(3, searches.get());
+		assertEquals(2, loaded.size());
+		assertNotNull(result.contents.get(new multipacks.vfs.Path("assets/extra.txt")));
+
+		// Changing dependencies of indirect dependency only invalidates queries of that dependency
+		base.getIndex().dependencies.add(PackQuery.parse("name 'extra'"));
+		bundler.bundle(top, new Version("1.19.3"));
+		assertEquals(4, searches.get());
+		assertEquals(3, loaded.size());
+
+		base.getIndex().dependencies.clear();
+		bundler.bundle(top, new Version("1.19.3"));
+		assertEquals(4, searches.get());
+		assertEquals(2, loaded.size());
+		assertEquals(2, new PackLock(loaded.toJson()).size());
+
+		// Locks are committed with packs, so configured repositories must have the same id on every machine
+		assertEquals(
+				Repository.fromConnectionString("local ./repository", Path.of("a")).getId(),
+				Repository.fromConnectionString("local ./repository", Path.of("b")).getId());
+	}
+
+	@Test
+	void testRacingResolver() throws Exception {
+		PackQuery query = PackQuery.parse("name 'base'");
+		CompletableFuture<Collection<PackIdentifier>> hanging = new CompletableFuture<>();
+		CompletableFuture<Void> slowStarted = new CompletableFuture<>();
+		Repository slow = new SimpleRepository() {
+			@Override
+			public CompletableFuture<Collection<PackIdentifier>> search(PackQuery query) {
+				slowStarted.complete(null);
+				return hanging;
+			}
+		};
+		Repository empty = new SimpleRepository();
+		Repository older = new SimpleRepository(virtualPack("base", new ConcurrentHashMap<>()));
+
+		// Lookups that are not started yet are skipped instead of being cancelled
+		Repository olderAfterSlow = new SimpleRepository(virtualPack("base", new ConcurrentHashMap<>())) {
+			@Override
+			public CompletableFuture<Collection<PackIdentifier>> search(PackQuery query) {
+				return slowStarted.thenCompose(v -> super.search(query));
+			}
+		};
+		Repository newer = new SimpleRepository() {
+			@Override
+			public CompletableFuture<Collection<PackIdentifier>> search(PackQuery query) {
+				return CompletableFuture.completedFuture(List.of(new PackIdentifier("base", new Version("1.1.0"))));
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+
+		try {
+			// First hit does not wait for later repositories, and cancels their lookups
+			RepositoriesResolver firstHit = new RepositoriesResolver(RepositoriesResolver.Mode.FIRST_HIT, -1, executor);
+			assertSame(olderAfterSlow, firstHit.resolve(List.of(empty, olderAfterSlow, slow), query).get(5, TimeUnit.SECONDS).repository);
+			assertThrows(CancellationException.class, () -> hanging.get(5, TimeUnit.SECONDS));
+
+			// Earlier repositories wins even if they answered last
+			CompletableFuture<Collection<PackIdentifier>> delayed = new CompletableFuture<>();
+			Repository earlier = new SimpleRepository() {
+				@Override
+				public CompletableFuture<Collection<PackIdentifier>> search(PackQuery query) {
+					return delayed;
+				}
+			};
+			CompletableFuture<RepositoriesResolver.Result> pending = firstHit.resolve(List.of(earlier, newer), query);
+			Thread.sleep(50);
+			assertFalse(pending.isDone());
+			delayed.complete(List.of(new PackIdentifier("base", new Version("1.0.0"))));
+			assertSame(earlier, pending.get(5, TimeUnit.SECONDS).repository);
+
+			// Slow repositories are skipped after timeout
+			RepositoriesResolver highest = new RepositoriesResolver(RepositoriesResolver.Mode.HIGHEST_VERSION, 100, executor);
+			RepositoriesResolver.Result result = highest.resolve(List.of(new SimpleRepository() {
+				@Override
+				public CompletableFuture<Collection<PackIdentifier>> search(PackQuery query) {
+					return new CompletableFuture<>();
+				}
+			}, empty, older, newer), query).get(5, TimeUnit.SECONDS);
+			assertSame(newer, result.repository);
+			assertEquals(new PackIdentifier("base", new Version("1.1.0")), result.id);
+
+			assertThrows(ExecutionException.class, () -> highest.resolve(List.of(empty), query).get(5, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
 	@Test
 	void testRepositoryUploadAndDelete() throws Exception {
 		LocalPack pack = TestUtils.getSamplePack();
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2022-2023 PhoMC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package multipacks.tests.vfs;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import multipacks.vfs.Path;
+import multipacks.vfs.Vfs;
+
+/**
+ * @author nahkd
+ *
+ */
+class VfsConcurrencyTest {
+	private static final int THREADS = 8;
+	private static final int ITERATIONS = 200;
+
+	private static void runParallel(int threads, Callable<Void> task) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		CountDownLatch start = new CountDownLatch(1);
+
+		try {
+			List<Future<Void>> futures = new ArrayList<>();
+			for (int i = 0; i < threads; i++) futures.add(executor.submit(() -> {
+				start.await();
+				return task.call();
+			}));
+
+			start.countDown();
+			for (Future<Void> future : futures) future.get();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void write(Vfs file, String content) throws Exception {
+		try (OutputStream stream = file.getOutputStream()) { stream.write(content.getBytes(StandardCharsets.UTF_8)); }
+	}
+
+	private static String read(Vfs file) {
+		return new String(file.getContent(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	void testParallelCreation() throws Exception {
+		Vfs root = Vfs.createVirtualRoot();
+		List<Vfs> dirs = new ArrayList<>();
+
+		runParallel(THREADS, () -> {
+			String thread = Thread.currentThread().getName();
+			Vfs shared = root.mkdir("shared");
+			synchronized (dirs) { dirs.add(shared); }
+
+			for (int i = 0; i < ITERATIONS; i++) {
+				String name = thread + "-" + i;
+				write(root.touch(new Path("shared/dir" + (i % 10) + "/" + name + ".txt")), name);
+			}
+
+			return null;
+		});
+
+		// All threads must receive the same directory
+		for (Vfs dir : dirs) assertSame(dirs.get(0), dir);
+
+		Vfs shared = root.get("shared");
+		assertEquals(10, shared.listFiles().length);
+		assertEquals(THREADS * ITERATIONS, shared.files().count());
+		shared.files().forEach(file -> assertEquals(file.getName(), read(file) + ".txt"));
+	}
+
+	@Test
+	void testParallelMerge() throws Exception {
+		Vfs target = Vfs.createVirtualRoot();
+		List<Vfs> sources = new ArrayList<>();
+
+		for (int i = 0; i < THREADS; i++) {
+			Vfs source = Vfs.createVirtualRoot(target.getBlobStore());
+			for (int j = 0; j < 50; j++) write(source.touch(new Path("assets/ns" + (j % 5) + "/file" + i + "-" + j + ".txt")), "content " + i + "-" + j);
+			write(source.touch(new Path("pack.mcmeta")), "meta " + i);
+			sources.add(source);
+		}
+
+		List<Vfs> queue = new ArrayList<>(sources);
+
+		runParallel(THREADS, () -> {
+			Vfs source;
+			synchronized (queue) { source = queue.remove(0); }
+			Vfs.copyRecursive(source, target);
+			return null;
+		});
+
+		assertEquals(5, target.get("assets").listFiles().length);
+		assertEquals(THREADS * 50 + 1, target.files().count());
+		assertTrue(read(target.get("pack.mcmeta")).startsWith("meta "));
+
+		// Merging must not modify the sources
+		for (Vfs source : sources) assertEquals(51, source.files().count());
+	}
+
+	@Test
+	void testParallelCopyOnWrite() throws Exception {
+		Vfs source = Vfs.createVirtualRoot();
+		for (int i = 0; i < 100; i++) write(source.touch(new Path("data/file" + i + ".txt")), "original");
+
+		Vfs snapshot = Vfs.createVirtualRoot(source.getBlobStore());
+		Vfs.copyRecursive(source, snapshot);
+
+		runParallel(THREADS, () -> {
+			for (int i = 0; i < ITERATIONS; i++) {
+				Vfs file = source.get(new Path("data/file" + (i % 100) + ".txt"));
+				write(file, "modified");
+				source.get("data").touch("new" + i + ".txt");
+				assertEquals("original", read(snapshot.get(new Path("data/file" + (i % 100) + ".txt"))));
+			}
+
+			return null;
+		});
+
+		assertEquals(100, snapshot.files().count());
+		snapshot.files().forEach(file -> assertEquals("original", read(file)));
+		source.get("data").files().filter(file -> file.getName().startsWith("file")).forEach(file -> assertEquals("modified", read(file)));
+		assertEquals(100 + ITERATIONS, source.files().count());
+	}
+
+	@Test
+	void testSnapshotIsolation() throws Exception {
+		Vfs root = Vfs.createVirtualRoot();
+		List<Vfs> snapshots = new ArrayList<>();
+		List<Long> counts = new ArrayList<>();
+
+		runParallel(THREADS, () -> {
+			boolean writer = Thread.currentThread().getName().hashCode() % 2 == 0;
+
+			for (int i = 0; i < ITERATIONS; i++) {
+				if (writer) {
+					root.touch(new Path("data/dir" + (i % 10) + "/" + Thread.currentThread().getName() + "-" + i + ".txt"));
+				} else {
+					Vfs snapshot = root.snapshot();
+					long count = snapshot.files().count();
+					synchronized (snapshots) {
+						snapshots.add(snapshot);
+						counts.add(count);
+					}
+				}
+			}
+
+			return null;
+		});
+
+		// Files that were created after taking snapshot must not appear in that snapshot
+		for (int i = 0; i < snapshots.size(); i++) assertEquals((long) counts.get(i), snapshots.get(i).files().count());
+	}
+
+	@Test
+	void testAtomicContent() throws Exception {
+		Vfs root = Vfs.createVirtualRoot();
+		Vfs file = root.touch("file.txt");
+		String a = "A".repeat(4096), b = "B".repeat(4096);
+		write(file, a);
+
+		runParallel(THREADS, () -> {
+			boolean writer = Thread.currentThread().getName().hashCode() % 2 == 0;
+
+			for (int i = 0; i < ITERATIONS; i++) {
+				if (writer) write(file, i % 2 == 0? b : a);
+				String content = read(root.get("file.txt"));
+				assertTrue(content.equals(a) || content.equals(b), "Partially written content");
+			}
+
+			return null;
+		});
+
+		assertSame(file, root.get("file.txt"));
+	}
+}
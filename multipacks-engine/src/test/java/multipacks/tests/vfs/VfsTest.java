@@ -21,12 +21,21 @@ import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.jupiter.api.Test;
 
+import multipacks.vfs.BlobStore;
 import multipacks.vfs.Path;
 import multipacks.vfs.Vfs;
+import multipacks.vfs.VfsChange;
+import multipacks.vfs.VfsJournal;
+import multipacks.vfs.VfsJournal.Operation;
 
 /**
  * @author nahkd
@@ -86,4 +95,175 @@ class VfsTest {
 		assertNotNull(vfsA.get(new Path("dir/a.txt")));
 		assertNotNull(vfsA.get(new Path("dir/b.txt")));
 	}
+
+	@Test
+	void testBlobStoreDeduplication() throws Exception {
+		BlobStore blobs = new BlobStore();
+		Vfs vfsA = Vfs.createVirtualRoot(blobs);
+		Vfs vfsB = Vfs.createVirtualRoot(blobs);
+
+		try (OutputStream s = vfsA.touch("a.txt").getOutputStream()) { s.write("Hello world!".getBytes(StandardCharsets.UTF_8)); }
+		try (OutputStream s = vfsB.touch("b.txt").getOutputStream()) { s.write("Hello world!".getBytes(StandardCharsets.UTF_8)); }
+
+		assertSame(vfsA.get("a.txt").getContent(), vfsB.get("b.txt").getContent());
+		assertEquals(2, blobs.getBlobsCount()); // Empty content from touch() and "Hello world!"
+		assertEquals(12, blobs.getStoredBytes());
+
+		try (OutputStream s = vfsA.touch("c.txt").getOutputStream()) {
+			s.write("Hello".getBytes(StandardCharsets.UTF_8));
+			s.flush();
+			assertEquals("Hello", new String(vfsA.get("c.txt").getContent(), StandardCharsets.UTF_8));
+			s.write(" world!".getBytes(StandardCharsets.UTF_8));
+		}
+
+		assertSame(vfsA.get("a.txt").getContent(), vfsA.get("c.txt").getContent());
+	}
+
+	@Test
+	void testCopyOnWrite() throws Exception {
+		Vfs vfsA = Vfs.createVirtualRoot();
+		Vfs fileA = vfsA.mkdir("dir").mkdir("nested").touch("a.txt");
+		try (OutputStream s = fileA.getOutputStream()) { s.write("A".getBytes(StandardCharsets.UTF_8)); }
+
+		Vfs vfsB = Vfs.createVirtualRoot();
+		Vfs.copyRecursive(vfsA, vfsB);
+		Vfs fileB = vfsB.get(new Path("dir/nested/a.txt"));
+		try (OutputStream s = fileB.getOutputStream()) { s.write("B".getBytes(StandardCharsets.UTF_8)); }
+		vfsB.get(new Path("dir/nested")).touch("b.txt");
+
+		assertEquals("A", new String(fileA.getContent(), StandardCharsets.UTF_8));
+		assertEquals("B", new String(fileB.getContent(), StandardCharsets.UTF_8));
+		assertNull(vfsA.get(new Path("dir/nested/b.txt")));
+
+		vfsA.get("dir").delete("nested");
+		assertNull(vfsA.get(new Path("dir/nested")));
+		assertNotNull(vfsB.get(new Path("dir/nested/a.txt")));
+		assertNotNull(vfsB.get(new Path("dir/nested/b.txt")));
+	}
+
+	@Test
+	void testLazyNativeCopy() throws Exception {
+		URI assets = this.getClass().getClassLoader().getResource("multipacksAssets").toURI();
+		Vfs nativeRoot = Vfs.createRoot(java.nio.file.Path.of(assets));
+		Vfs virtualRoot = Vfs.createVirtualRoot();
+		Vfs.copyRecursive(nativeRoot, virtualRoot);
+
+		Vfs copied = virtualRoot.get(new Path("assets/multipacks/models/sample_model.json"));
+		assertTrue(copied.isNative());
+		assertArrayEquals(nativeRoot.get(new Path("assets/multipacks/models/sample_model.json")).getContent(), copied.getContent());
+
+		try (OutputStream s = copied.getOutputStream()) { s.write("{}".getBytes(StandardCharsets.UTF_8)); }
+		assertFalse(copied.isNative());
+		assertTrue(nativeRoot.get(new Path("assets/multipacks/models/sample_model.json")).isNative());
+	}
+
+	@Test
+	void testContentBuffer() throws Exception {
+		Vfs root = Vfs.createVirtualRoot();
+		Vfs file = root.touch("hello.txt");
+		try (OutputStream s = file.getOutputStream()) { s.write("Hello world!".getBytes(StandardCharsets.UTF_8)); }
+
+		ByteBuffer buffer = file.getContentBuffer();
+		assertTrue(buffer.isReadOnly());
+		assertEquals(12, buffer.remaining());
+
+		java.nio.file.Path dir = Files.createTempDirectory("multipacks-test-mapping");
+		java.nio.file.Path large = dir.resolve("large.bin");
+		try {
+			Files.write(large, new byte[(int) Vfs.MAPPING_THRESHOLD]);
+			assertMapped(Vfs.createRoot(dir).get("large.bin"));
+		} finally {
+			// Mapped files can't be deleted on some platforms until the mapping is garbage collected
+			System.gc();
+			if (large.toFile().delete()) {
+				Files.delete(dir);
+			} else {
+				// Deleted in reverse order
+				dir.toFile().deleteOnExit();
+				large.toFile().deleteOnExit();
+			}
+		}
+	}
+
+	private static void assertMapped(Vfs file) {
+		ByteBuffer mapped = file.getContentBuffer();
+		assertTrue(mapped.isDirect());
+		assertEquals(Vfs.MAPPING_THRESHOLD, mapped.remaining());
+	}
+
+	@Test
+	void testBlobStoreSpilling() throws Exception {
+		BlobStore blobs = new BlobStore(16);
+		Vfs root = Vfs.createVirtualRoot(blobs);
+
+		try (blobs) {
+			for (int i = 0; i < 8; i++) {
+				try (OutputStream s = root.touch("file" + i + ".txt").getOutputStream()) { s.write(("Content of file #" + i).getBytes(StandardCharsets.UTF_8)); }
+			}
+
+			assertEquals(18, blobs.getInMemoryBytes()); // Most recently used content is always kept in memory
+			for (int i = 0; i < 8; i++) assertEquals("Content of file #" + i, new String(root.get("file" + i + ".txt").getContent(), StandardCharsets.UTF_8));
+		}
+
+		// Spilling after closing must not create new temporary file
+		assertThrows(RuntimeException.class, () -> {
+			for (int i = 0; i < 2; i++) {
+				try (OutputStream s = root.touch("closed" + i + ".txt").getOutputStream()) { s.write(("Content after closing #" + i).getBytes(StandardCharsets.UTF_8)); }
+			}
+		});
+	}
+
+	@Test
+	void testWalkAndStream() throws Exception {
+		Vfs root = Vfs.createVirtualRoot();
+		for (int i = 0; i < 10; i++) {
+			Vfs dir = root.mkdir("dir" + i);
+			for (int j = 0; j < 20; j++) dir.touch("file" + j + (j % 2 == 0? ".png" : ".json"));
+		}
+
+		List<Vfs> walked = new ArrayList<>();
+		root.walk(file -> {
+			walked.add(file);
+			return FileVisitResult.CONTINUE;
+		});
+
+		assertEquals(200, walked.size());
+		assertEquals(walked, root.files().toList());
+		assertEquals(walked, root.files(true).toList());
+		assertEquals(100, root.files(true).filter(Vfs.hasExtension("png")).count());
+		assertEquals(20, root.get("dir3").files().count());
+	}
+
+	@Test
+	void testJournalAndDiff() throws Exception {
+		Vfs root = Vfs.createVirtualRoot();
+		try (OutputStream s = root.touch(new Path("a/keep.txt")).getOutputStream()) { s.write(1); }
+		try (OutputStream s = root.touch(new Path("a/change.txt")).getOutputStream()) { s.write(2); }
+		try (OutputStream s = root.touch(new Path("b/remove.txt")).getOutputStream()) { s.write(3); }
+
+		Vfs snapshot = root.snapshot();
+		VfsJournal journal = new VfsJournal();
+		root.setJournal(journal);
+
+		try (OutputStream s = root.get(new Path("a/change.txt")).getOutputStream()) { s.write(4); }
+		root.delete("b");
+		root.mkdir("c").touch("new.txt");
+
+		// Writing the same content is not a change
+		try (OutputStream s = root.get(new Path("a/keep.txt")).getOutputStream()) { s.write(1); }
+
+		assertEquals(
+				List.of(Operation.WRITE, Operation.DELETE, Operation.MKDIR, Operation.TOUCH, Operation.WRITE),
+				journal.getEntries().stream().map(e -> e.operation).toList());
+		assertEquals(new Path("c/new.txt"), journal.getEntries().get(3).path);
+
+		assertEquals(List.of(
+				new VfsChange(VfsChange.Type.MODIFIED, new Path("a/change.txt")),
+				new VfsChange(VfsChange.Type.REMOVED, new Path("b/remove.txt")),
+				new VfsChange(VfsChange.Type.ADDED, new Path("c/new.txt"))), Vfs.diff(snapshot, root));
+		assertEquals(0, Vfs.diff(root, root.snapshot()).size());
+
+		// Snapshot is not affected by modifications
+		assertEquals(3, snapshot.get(new Path("b/remove.txt")).getContent()[0]);
+	}
 }
@@ -15,23 +15,33 @@
  */
 package multipacks.spigot.platform;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
+import multipacks.bundling.BuildCache;
+import multipacks.bundling.BundleMemo;
 import multipacks.bundling.BundleResult;
 import multipacks.bundling.Bundler;
+import multipacks.bundling.zip.CompressionPolicy;
 import multipacks.logging.Logger;
 import multipacks.modifier.Modifier;
 import multipacks.modifier.ModifierInfo;
 import multipacks.packs.LocalPack;
 import multipacks.packs.meta.PackIndex;
+import multipacks.packs.meta.PackLock;
 import multipacks.platform.Platform;
 import multipacks.platform.PlatformConfig;
 import multipacks.plugins.Plugin;
@@ -43,6 +53,9 @@ import multipacks.utils.io.IOUtils;
 import multipacks.versioning.Version;
 
 public class SpigotPlatform implements Platform {
+	public static final String ARTIFACT_ZIP = "pack.zip";
+	public static final String FILE_MASTER_ZIP = "master-pack.zip";
+
 	private MultipacksSpigot plugin;
 
 	private SpigotLogger logger;
@@ -51,7 +64,11 @@ public class SpigotPlatform implements Platform {
 	private Map<ResourcePath, Plugin> plugins = new HashMap<>();
 	private List<Repository> repositories = new ArrayList<>();
 	private LocalPack masterPack;
-	private BundleResult masterBuildOutput;
+	private CompletableFuture<BundleResult> masterBuild;
+	private CompletableFuture<Path> masterBuildZip;
+	private BuildCache buildCache;
+	private CompressionPolicy compressionPolicy = CompressionPolicy.createDefault();
+	private BundleMemo bundleMemo = new BundleMemo();
 
 	public SpigotPlatform(MultipacksSpigot plugin) {
 		this.plugin = plugin;
@@ -97,6 +114,9 @@ public class SpigotPlatform implements Platform {
 		SpigotPlatformConfig config = new SpigotPlatformConfig(IOUtils.jsonFromPath(configFile).getAsJsonObject());
 		config.collectRepositories(repo -> repositories.add(repo), getMultipacksDir());
 
+		buildCache = config.buildCache != null? new BuildCache(getMultipacksDir().resolve(config.buildCache)) : null;
+		compressionPolicy = config.getCompressionPolicy();
+
 		if (config.masterPack != null) {
 			logger.info("Master pack declared in configuration file: {}", config.masterPack);
 			masterPack = new LocalPack(getMultipacksDir().resolve(config.masterPack));
@@ -105,8 +125,18 @@ public class SpigotPlatform implements Platform {
 			masterPack = null;
 		}
 
-		masterBuildOutput = null;
-		if (masterPack != null && config.prebuild) getMasterBuildOutput();
+		// Stale build from previous configuration is no longer needed, and memorized dependencies were bundled with
+		// previous modifiers and repositories
+		synchronized (this) {
+			if (masterBuild != null) masterBuild.cancel(true);
+			if (masterBuildZip != null) masterBuildZip.cancel(true);
+			masterBuild = null;
+			masterBuildZip = null;
+			bundleMemo.close();
+			bundleMemo = new BundleMemo();
+		}
+
+		if (masterPack != null && config.prebuild) getMasterBuildZipAsync();
 	}
 
 	@PlatformAPI
@@ -114,21 +144,136 @@ public class SpigotPlatform implements Platform {
 		return masterPack;
 	}
 
+	/**
+	 * Returns {@code null} until the master pack is built; use {@link #getMasterBuildOutputAsync()} to wait for it.
+	 */
 	@PlatformAPI
 	public BundleResult getMasterBuildOutput() {
-		if (masterPack == null) return null;
+		try {
+			return getMasterBuildOutputAsync().getNow(null);
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException re) throw re;
+			throw e;
+		}
+	}
+
+	@PlatformAPI
+	public synchronized CompletableFuture<BundleResult> getMasterBuildOutputAsync() {
+		if (masterPack == null) return CompletableFuture.completedFuture(null);
+		if (masterBuild != null) return masterBuild;
+
+		logger.info("Building master pack...");
+		long nano = System.nanoTime();
+		LocalPack pack = masterPack;
+		PackLock lock;
+
+		try {
+			lock = pack.loadLock();
+		} catch (IOException e) {
+			logger.warning("Failed to load {}: {}", LocalPack.FILE_LOCK, e.getMessage());
+			lock = new PackLock();
+		}
 
-		if (masterBuildOutput == null) {
-			logger.info("Building master pack...");
-			long nano = System.nanoTime();
+		Bundler bundler = new Bundler().fromPlatform(this).setMemo(bundleMemo).setLock(lock).setBuildCache(buildCache);
+		CompletableFuture<BundleResult> build = masterBuild = bundler.bundleAsync(pack, MultipacksSpigot.detectGameVersion());
+		PackLock buildLock = lock;
 
-			Bundler bundler = new Bundler().fromPlatform(this);
-			masterBuildOutput = bundler.bundle(masterPack, MultipacksSpigot.detectGameVersion());
+		build.whenComplete((result, e) -> {
+			if (e != null) {
+				synchronized (this) {
+					if (masterBuild == build) masterBuild = null;
+				}
+
+				if (!build.isCancelled()) {
+					logger.error("Failed to build master pack:");
+					e.printStackTrace();
+				}
+
+				return;
+			}
+
+			try {
+				pack.saveLock(buildLock);
+			} catch (IOException ex) {
+				logger.warning("Failed to save {}: {}", LocalPack.FILE_LOCK, ex.getMessage());
+			}
 
 			logger.info("Master pack built in {}ms", (System.nanoTime() - nano) * Math.pow(10, -6));
+		});
+
+		return build;
+	}
+
+	/**
+	 * Returns {@code null} until the master pack zip is written; use {@link #getMasterBuildZipAsync()} to wait for it.
+	 */
+	@PlatformAPI
+	public Path getMasterBuildZip() {
+		try {
+			return getMasterBuildZipAsync().getNow(null);
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException re) throw re;
+			throw e;
+		}
+	}
+
+	@PlatformAPI
+	public synchronized CompletableFuture<Path> getMasterBuildZipAsync() {
+		if (masterPack == null) return CompletableFuture.completedFuture(null);
+		if (masterBuildZip != null) return masterBuildZip;
+
+		CompletableFuture<Path> zip = masterBuildZip = getMasterBuildOutputAsync().thenApplyAsync(this::writeMasterBuildZip);
+
+		zip.whenComplete((path, e) -> {
+			if (e == null) return;
+
+			synchronized (this) {
+				if (masterBuildZip == zip) masterBuildZip = null;
+			}
+
+			if (!zip.isCancelled() && !(e.getCause() instanceof CancellationException)) {
+				logger.error("Failed to write master pack zip:");
+				e.printStackTrace();
+			}
+		});
+
+		return zip;
+	}
+
+	private Path writeMasterBuildZip(BundleResult result) {
+		BuildCache cache = buildCache;
+		CompressionPolicy policy = compressionPolicy;
+
+		if (cache != null && result.getFingerprint() != null) {
+			// Zip files that were written with different compression rules are different artifacts
+			String artifact = new BuildCache.Fingerprint().put(policy.toJson().toString()).finish() + "-" + ARTIFACT_ZIP;
+			Path zipFile = cache.getArtifact(result.getFingerprint(), artifact);
+			if (zipFile == null) zipFile = cache.storeArtifact(result.getFingerprint(), artifact, stream -> result.writeReproducibleZipData(stream, policy));
+
+			try {
+				// Zip files of older builds will never be served again
+				cache.retainArtifacts(result.getFingerprint());
+				cache.prune(System.currentTimeMillis() - BuildCache.DEFAULT_RETENTION);
+			} catch (IOException e) {
+				logger.warning("Failed to remove old build artifacts: {}", e.getMessage());
+			}
+
+			return zipFile;
 		}
 
-		return masterBuildOutput;
+		Path zipFile = getMultipacksDir().resolve(FILE_MASTER_ZIP);
+		Path temp = zipFile.resolveSibling(FILE_MASTER_ZIP + ".tmp");
+
+		try {
+			try (OutputStream stream = new FileOutputStream(temp.toFile())) {
+				result.writeReproducibleZipData(stream, policy);
+			}
+
+			Files.move(temp, zipFile, StandardCopyOption.REPLACE_EXISTING);
+			return zipFile;
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to write " + zipFile, e);
+		}
 	}
 
 	@PlatformAPI
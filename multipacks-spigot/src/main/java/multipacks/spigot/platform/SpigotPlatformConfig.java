@@ -17,6 +17,7 @@ package multipacks.spigot.platform;
 
 import com.google.gson.JsonObject;
 
+import multipacks.bundling.zip.CompressionPolicy;
 import multipacks.platform.PlatformConfig;
 import multipacks.utils.Selects;
 
@@ -27,10 +28,16 @@ import multipacks.utils.Selects;
 public class SpigotPlatformConfig extends PlatformConfig {
 	public static final String FIELD_MASTER_PACK = "masterPack";
 	public static final String FIELD_PREBUILD = "prebuild";
+	public static final String FIELD_BUILD_CACHE = "buildCache";
+	public static final String FIELD_COMPRESSION = "compression";
 
 	public String masterPack;
 	public boolean prebuild;
 
+	public String buildCache;
+
+	public JsonObject compression;
+
 	public SpigotPlatformConfig() {
 		super();
 	}
@@ -39,6 +46,8 @@ public class SpigotPlatformConfig extends PlatformConfig {
 		super(json);
 		masterPack = Selects.getChain(json.get(FIELD_MASTER_PACK), j -> j.getAsString(), null);
 		prebuild = Selects.getChain(json.get(FIELD_PREBUILD), j -> j.getAsBoolean(), true);
+		buildCache = Selects.getChain(json.get(FIELD_BUILD_CACHE), j -> j.isJsonNull()? null : j.getAsString(), null);
+		compression = Selects.getChain(json.get(FIELD_COMPRESSION), j -> j.getAsJsonObject(), null);
 	}
 
 	@Override
@@ -49,11 +58,17 @@ public class SpigotPlatformConfig extends PlatformConfig {
 		return this;
 	}
 
+	public CompressionPolicy getCompressionPolicy() {
+		return compression != null? CompressionPolicy.fromJson(compression) : CompressionPolicy.createDefault();
+	}
+
 	@Override
 	public JsonObject toJson() {
 		JsonObject json = super.toJson();
 		if (masterPack != null) json.addProperty(FIELD_MASTER_PACK, masterPack);
 		json.addProperty(FIELD_PREBUILD, prebuild);
+		if (buildCache != null) json.addProperty(FIELD_BUILD_CACHE, buildCache);
+		if (compression != null) json.add(FIELD_COMPRESSION, compression);
 		return json;
 	}
 }